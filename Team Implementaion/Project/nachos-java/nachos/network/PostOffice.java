@@ -13,22 +13,29 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * with a <tt>BoundedSynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each mailbox holds at most <tt>mailboxCapacity</tt> messages. When a
+ * mailbox is full, further messages for that port are dropped, just as if
+ * the network had lost them, so a packet storm cannot use up memory or stall
+ * delivery to the other ports.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, using an array of
+     * <tt>BoundedSynchList</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
     public PostOffice() {
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	sendLock = new Lock("PostOffice.sendLock");
 
-	queues = new SynchList[MailMessage.portLimit];
+	queues = new BoundedSynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new BoundedSynchList(mailboxCapacity);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -88,8 +95,11 @@ public class PostOffice {
 		System.out.println("delivering mail to port " + mail.dstPort
 				   + ": " + mail);
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    // atomically add message to the mailbox and wake a waiting thread;
+	    // drop it if the mailbox is full rather than block every port
+	    if (!queues[mail.dstPort].offer(mail))
+		Lib.debug(dbgNet, "mailbox full, dropping mail to port "
+			  + mail.dstPort);
 	}
     }
 
@@ -125,10 +135,13 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private BoundedSynchList[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
 
+    /** The number of messages each port's mailbox can hold. */
+    public static final int mailboxCapacity = 32;
+
     private static final char dbgNet = 'n';
 }
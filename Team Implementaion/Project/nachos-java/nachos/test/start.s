@@ -67,3 +67,16 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(ring_enter, syscallRingEnter)
+	SYSCALLSTUB(aread, syscallARead)
+	SYSCALLSTUB(awrite, syscallAWrite)
+	SYSCALLSTUB(await, syscallAwait)
+	SYSCALLSTUB(apoll, syscallAPoll)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(waitany, syscallWaitAny)
+	SYSCALLSTUB(fork, syscallFork)
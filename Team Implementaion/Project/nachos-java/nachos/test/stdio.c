@@ -1,18 +1,63 @@
-#include "stdio.h"
-#include "stdlib.h"
-
-int fgetc(int fd) {
-    unsigned char c;
-
-    while (read(fd, &c, 1) != 1);
-
-    return c;
-}
-
-void fputc(char c, int fd) {
-    write(fd, &c, 1);
-}
-
-void fputs(const char *s, int fd) {
-    write(fd, (char*) s, strlen(s));
-}
+#include "stdio.h"
+#include "stdlib.h"
+
+#define STDOUT_BUFSIZE	256
+
+static char stdoutbuf[STDOUT_BUFSIZE];
+static int stdoutlen = 0;
+
+int fgetc(int fd) {
+    unsigned char c;
+
+    /* make sure a prompt is visible before waiting for input */
+    if (fd == stdin)
+	fflush(stdout);
+
+    while (read(fd, &c, 1) != 1);
+
+    return c;
+}
+
+void fflush(int fd) {
+    if (fd == stdout && stdoutlen > 0) {
+	write(stdout, stdoutbuf, stdoutlen);
+	stdoutlen = 0;
+    }
+}
+
+void fwrite(const char *s, int length, int fd) {
+    struct iovec iov[2];
+    int i, newline = 0;
+
+    if (fd != stdout) {
+	write(fd, (char*) s, length);
+	return;
+    }
+
+    for (i=0; i<length; i++) {
+	if (s[i] == '\n')
+	    newline = 1;
+    }
+
+    if (stdoutlen + length <= STDOUT_BUFSIZE && !newline) {
+	memcpy(stdoutbuf + stdoutlen, s, length);
+	stdoutlen += length;
+	return;
+    }
+
+    /* write out the buffer and the new data with one syscall */
+    iov[0].iov_base = stdoutbuf;
+    iov[0].iov_len = stdoutlen;
+    iov[1].iov_base = (char*) s;
+    iov[1].iov_len = length;
+    writev(stdout, iov, 2);
+    stdoutlen = 0;
+}
+
+void fputc(char c, int fd) {
+    fwrite(&c, 1, fd);
+}
+
+void fputs(const char *s, int fd) {
+    fwrite(s, strlen(s), fd);
+}
@@ -1,40 +1,48 @@
-/*-------------------------------------------------------------
- * stdio.h
- *
- * Header file for standard I/O routines.
- *-------------------------------------------------------------*/
-
-#ifndef STDIO_H
-#define STDIO_H
-
-#include "syscall.h"
-#include "stdarg.h"
-
-typedef int		FILE;
-#define stdin		fdStandardInput
-#define stdout		fdStandardOutput
-
-int  fgetc(FILE stream);
-void readline(char *s, int maxlength);
-int  tryreadline(char *s, char c, int maxlength);
-
-#define getc(stream)	fgetc(stream)
-#define getchar()	getc(stdin)
-#define getch()		getchar()
-
-void fputc(char c, FILE stream);
-void fputs(const char *s, FILE stream);
-
-#define puts(s)		fputs(s,stdout)
-#define putc(c,stream)	fputc(c,stream)
-#define putchar(c)	putc(c,stdout)
-#define beep()		putchar(0x07)
-
-void vsprintf(char *s, char *format, va_list ap);
-void vfprintf(FILE f, char *format, va_list ap);
-void vprintf(char *format, va_list ap);
-void sprintf(char *s, char *format, ...);
-void fprintf(FILE f, char *format, ...);
-void printf(char *format, ...);
-
-#endif // STDIO_H
+/*-------------------------------------------------------------
+ * stdio.h
+ *
+ * Header file for standard I/O routines.
+ *-------------------------------------------------------------*/
+
+#ifndef STDIO_H
+#define STDIO_H
+
+#include "syscall.h"
+#include "stdarg.h"
+
+typedef int		FILE;
+#define stdin		fdStandardInput
+#define stdout		fdStandardOutput
+
+int  fgetc(FILE stream);
+void readline(char *s, int maxlength);
+int  tryreadline(char *s, char c, int maxlength);
+
+#define getc(stream)	fgetc(stream)
+#define getchar()	getc(stdin)
+#define getch()		getchar()
+
+/* Output to stdout is line buffered: it is collected in a buffer that is
+ * written out when a newline is output, when the buffer fills up, before
+ * input is read from stdin, or when fflush() is called. Output to any other
+ * stream is written immediately. Call fflush(stdout) before exit() if the
+ * last line printed does not end in a newline.
+ */
+void fputc(char c, FILE stream);
+void fputs(const char *s, FILE stream);
+void fwrite(const char *s, int length, FILE stream);
+void fflush(FILE stream);
+
+#define puts(s)		fputs(s,stdout)
+#define putc(c,stream)	fputc(c,stream)
+#define putchar(c)	putc(c,stdout)
+#define beep()		putchar(0x07)
+
+void vsprintf(char *s, char *format, va_list ap);
+void vfprintf(FILE f, char *format, va_list ap);
+void vprintf(char *format, va_list ap);
+void sprintf(char *s, char *format, ...);
+void fprintf(FILE f, char *format, ...);
+void printf(char *format, ...);
+
+#endif // STDIO_H
@@ -25,6 +25,19 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallReadv		15
+#define syscallWritev		16
+#define syscallRingEnter	17
+#define syscallARead		18
+#define syscallAWrite		19
+#define syscallAwait		20
+#define syscallAPoll		21
+#define syscallDup		22
+#define syscallDup2		23
+#define syscallWaitAny		24
+#define syscallFork		25
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +66,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), waitany(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,7 +122,41 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
-/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
+/* The waitany() flag to return immediately if no child has exited. */
+#define WNOHANG		1
+/* What waitany() returns, given WNOHANG, if no child has exited yet. */
+#define WAIT_RUNNING	-2
+
+/**
+ * Like join(), but wait for whichever child process exits first, so a parent
+ * with many children can reap them in the order they finish. If some
+ * children have already exited, the one that exited first is reaped
+ * immediately. Its process ID is stored in *pid, and its exit status in
+ * *status.
+ *
+ * flags is 0, or WNOHANG to return WAIT_RUNNING instead of waiting if none of
+ * the children has exited yet.
+ *
+ * If the child exited normally, returns 1. If the child exited as a result of
+ * an unhandled exception, returns 0. If the current process has no children,
+ * or an argument is invalid, returns -1.
+ */
+int waitany(int *pid, int *status, int flags);
+
+/**
+ * Create a child process that is a copy of the current process. The child
+ * has a new unique process ID, the same memory contents and registers, and
+ * file descriptors referring to the same files, sharing their file
+ * positions. Both processes return from fork(): the parent with the child's
+ * process ID, and the child with 0.
+ *
+ * Memory is not copied when fork() is called. The two processes share it
+ * until one of them writes to a page, and only that page is copied then.
+ */
+int fork();
+
+/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink, dup,
+ * dup2
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
  * disk or to a stream (such as console input, console output, and network
@@ -117,6 +164,8 @@ int join(int processID, int *status);
  * read/write the corresponding file/stream. A file descriptor can also be
  * passed to close() to release the file descriptor and any associated
  * resources.
+ *
+ * New file descriptors are always the lowest ones not in use.
  */
 
 /**
@@ -214,6 +263,24 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Return a new file descriptor, the lowest one not in use, that refers to the
+ * same file or stream as fileDescriptor. The two descriptors share a file
+ * position, and the file stays open until both are closed.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Like dup(), but make newFileDescriptor refer to the file. If
+ * newFileDescriptor was already in use, it is closed first. Does nothing if
+ * the two descriptors are the same.
+ *
+ * Returns newFileDescriptor, or -1 if an error occurred.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -257,6 +324,160 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* VECTORED I/O SYSCALLS: readv, writev
+ * These move data between one file descriptor and several buffers in a
+ * single kernel entry.
+ */
+
+/* One buffer of a readv() or writev() call. */
+struct iovec {
+    void *iov_base;	/* start of the buffer */
+    int iov_len;	/* length of the buffer in bytes */
+};
+
+/* The most iovecs a single readv() or writev() accepts. */
+#define IOV_MAX		128
+
+/**
+ * Like read(), but fill the iovcnt buffers described by iov in order,
+ * moving on to the next buffer only once the current one is full.
+ * Returns the total number of bytes read, which is smaller than the total
+ * length of the buffers if the end of the file was reached or fewer bytes
+ * were available on a stream. On error, returns -1. This happens if
+ * fileDescriptor is invalid, if iovcnt is negative or larger than IOV_MAX,
+ * or if any part of any buffer is read-only or invalid; in that case no
+ * data is read.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the iovcnt buffers described by iov in order, as
+ * if they had been copied into one buffer and written with a single
+ * write(). Returns the total number of bytes written, or -1 on error. This
+ * happens if fileDescriptor is invalid, if iovcnt is negative or larger than
+ * IOV_MAX, or if any part of any buffer is invalid; in that case no data is
+ * written.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/* BATCHED I/O: ring_enter
+ * A program that issues many small operations can queue them in a
+ * submission ring in its own memory, and have the kernel carry out the whole
+ * batch with a single ring_enter() call. The result of each operation is
+ * posted to a completion ring. Both rings have a power-of-two number of
+ * entries (at most 4096), and are indexed by free-running head and tail
+ * counters: entry i lives in slot (i & (entries-1)).
+ *
+ * The program adds submissions at sq_tail and takes completions from
+ * cq_head; the kernel takes submissions from sq_head and adds completions at
+ * cq_tail. Completions are posted in submission order.
+ */
+
+/* Operations that can be submitted. Each has the same arguments and result
+ * as the system call of the same name.
+ */
+#define RING_OPEN	0	/* open((char*) addr) */
+#define RING_READ	1	/* read(fd, (void*) addr, len) */
+#define RING_WRITE	2	/* write(fd, (void*) addr, len) */
+#define RING_CLOSE	3	/* close(fd) */
+
+struct ring_sqe {
+    int opcode;		/* one of the RING_ operations */
+    int fd;
+    void *addr;
+    int len;
+    int user_data;	/* copied to the completion */
+};
+
+struct ring_cqe {
+    int user_data;	/* from the submission */
+    int result;		/* what the operation returned */
+};
+
+struct ring {
+    unsigned int sq_head, sq_tail;
+    unsigned int cq_head, cq_tail;
+    unsigned int sq_entries, cq_entries;
+    struct ring_sqe *sqes;
+    struct ring_cqe *cqes;
+};
+
+/**
+ * Carry out every operation in ring's submission ring, in order, posting
+ * each result to the completion ring, until the submission ring is empty or
+ * the completion ring is full. Updates sq_head and cq_tail.
+ * Returns the number of operations carried out, or -1 if the ring header or
+ * either entry array is invalid.
+ */
+int ring_enter(struct ring *ring);
+
+/* ASYNCHRONOUS I/O SYSCALLS: aread, awrite, await, apoll
+ * These start a read or write and return right away, so the program can
+ * keep computing while the kernel moves the data. Each request is identified
+ * by a ticket, which is used to collect its result. A process may have at
+ * most 16 requests whose results have not been collected.
+ * The buffer of a request must not be used until the request has completed.
+ */
+
+/* What apoll() returns for a request that has not completed yet. */
+#define AIO_PENDING	-2
+
+/**
+ * Start reading up to count bytes into buffer from fileDescriptor. If the
+ * file descriptor refers to a file on disk, the data is read from the current
+ * file position, and the position is advanced by count immediately, so the
+ * next request continues where this one will end. If the request transfers
+ * fewer than count bytes, the position is moved back to just past the bytes
+ * transferred when it completes, but only if no later request, read() or
+ * write() has moved it in the meantime.
+ * Returns a ticket for the request, or -1 if the arguments are invalid (as for
+ * read()) or too many requests are outstanding.
+ */
+int aread(int fileDescriptor, void *buffer, int count);
+
+/**
+ * Start writing count bytes from buffer to fileDescriptor. File positions are
+ * handled as for aread().
+ * Returns a ticket for the request, or -1 on error.
+ */
+int awrite(int fileDescriptor, void *buffer, int count);
+
+/**
+ * Wait for the request identified by ticket to complete, and return its
+ * result: the number of bytes transferred, or -1 if the transfer failed.
+ * The ticket may not be used again. Returns -1 if ticket is invalid.
+ */
+int await(int ticket);
+
+/**
+ * Like await(), but never waits: returns AIO_PENDING if the request has not
+ * completed yet, in which case the ticket remains valid.
+ */
+int apoll(int ticket);
+
+/* SYNCHRONIZATION SYSCALLS: futex_wait, futex_wake
+ * These let a user-level lock or condition variable stay entirely in user
+ * mode while it is uncontended, and only enter the kernel to sleep or to wake
+ * a sleeper. Waiters are queued by the physical address of the word, so the
+ * word may be shared between processes.
+ */
+
+/**
+ * If the word at addr still holds expected, sleep until another thread calls
+ * futex_wake() on the same word. The check and the sleep are atomic, so a
+ * wake that happens after the caller last tested the word is never lost.
+ * addr must be word-aligned.
+ * Returns 0 after being woken. Returns -1 immediately if the word did not
+ * hold expected, or if addr is invalid.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up to count threads sleeping in futex_wait() on the word at addr.
+ * Returns the number of threads woken, or -1 if addr is invalid.
+ */
+int futex_wake(int *addr, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -1,11 +1,23 @@
 package nachos.threads;
-import java.util.PriorityQueue;
-import java.util.*;
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a two-level hierarchical timing wheel. Each
+ * slot of the inner wheel covers <tt>Stats.TimerTicks</tt> clock ticks, the
+ * period of the timer interrupt, so each interrupt only has to look at the
+ * slot (or two) that came due since the last one. Each slot of the outer
+ * wheel covers one full turn of the inner wheel, and is moved down into the
+ * inner wheel when that turn starts. Entries are linked into their slot
+ * directly, so adding and canceling a wakeup are O(1).
+ *
+ * <p>
+ * Besides putting threads to sleep, the alarm can run callbacks, once or
+ * periodically, from the timer interrupt. Callbacks do not need a thread of
+ * their own, and may arm and cancel timers themselves.
  */
 
 public class Alarm {
@@ -17,6 +29,8 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	cursor = Machine.timer().getTime() / Stats.TimerTicks;
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -24,31 +38,32 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * whose time has come, then causes the current thread to yield, forcing a
+     * context switch if there is another thread that should be run.
      */
     public void timerInterrupt() {
-    	//create some variables
-    	boolean disableStatus;
-    	//KThread pollItem;
     	//disable interrupts
-    	disableStatus = Machine.interrupt().setStatus(false);
-    	//boolean disableStatus = Machine.interrupt().disable(); 
-    	//queue not empty, we proceed, else we do nothing
-    	if (ContainerList.size() > 0){
-    		//peek into the first element and retrieve the waketime, the compare with current time
-    		while (ContainerList.peek().waketime <= Machine.timer().getTime()) {
-    			//remove the first element
-    			ThreadTime wakeThread = ContainerList.poll();
-    			currthread = wakeThread.thread;
-    			//after the wait the thread can now move to the ready queue
-    			currthread.ready();
-    			}
-    		}
-    	
+    	boolean disableStatus = Machine.interrupt().setStatus(false);
+
+    	long now = Machine.timer().getTime();
+    	long target = now / Stats.TimerTicks;
+
+    	//expire every slot that came due since the last interrupt; the
+    	//slot for the current tick may still hold entries for later in it
+    	while (true) {
+    		expire(innerWheel, (int) (cursor & innerMask), now);
+    		if (cursor >= target)
+    			break;
+    		cursor++;
+    		//starting a new turn of the inner wheel, so pull its timers
+    		//down from the outer wheel
+    		if ((cursor & innerMask) == 0)
+    			cascade();
+    	}
+
     	KThread.yield();
-    	
+
     	//enable interrupts
     	Machine.interrupt().restore(disableStatus);
     }
@@ -68,52 +83,372 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
     	long wakeTime = Machine.timer().getTime() + x;
-		//thread adding statement
-    	this.currthread = KThread.currentThread();
-		this.waketime = wakeTime;
-		ThreadTime ContainList = new ThreadTime(waketime, currthread);
-	
-		boolean disableStatus;
+
     	//disable interrupts
-    	disableStatus = Machine.interrupt().setStatus(false);
-		//add to our priority queue called ContainerList
-		ContainerList.add(ContainList);	
-		Machine.interrupt().restore(disableStatus);
+    	boolean disableStatus = Machine.interrupt().setStatus(false);
+		//add to the timing wheel
+		addWakeup(KThread.currentThread(), wakeTime, null);
 		//go to sleep and go for next process
-	   KThread.yield();
+		KThread.sleep();
+		Machine.interrupt().restore(disableStatus);
     }
-    //creating a priority queue to contain the sleeping threads
-    //create some global variables so I can used in ThreadTime
-    public PriorityQueue <ThreadTime> ContainerList = new PriorityQueue<ThreadTime>(5, new waketimeComparator());
-    public KThread currthread;
-    public long waketime;
-}
 
-//creating a new class with the thread and the time needed to be waken up
-class ThreadTime {
-		//the current thread
-		KThread thread;
-		long waketime;
-
-		ThreadTime(long waketime, KThread currthread){
-			//the thread
-			this.thread = currthread;
-			//the wake time
-			this.waketime = waketime;
-		}
-		//need to show the waketime will I pull it out
-}
-//require a compare to alter the order of the priority queue
-class waketimeComparator implements Comparator<ThreadTime>{
-	public int compare(ThreadTime s1, ThreadTime s2) {
-		//if time coming in is less than or equal to elements in the queue
-			if (s1.waketime > s2.waketime) {
-				return 1;
-			}
-			else {
-				return -1;
-			}
-		}
+    /**
+     * Arrange for <i>thread</i> to be placed on the ready queue during the
+     * first timer interrupt at or after <i>wakeTime</i>, without putting it to
+     * sleep. Interrupts must be disabled.
+     *
+     * @param	thread		the thread to wake.
+     * @param	wakeTime	the earliest time to wake it.
+     * @param	condition	the condition variable the thread is also
+     *				waiting on, or <tt>null</tt>. It is told when
+     *				the timer fires first.
+     * @return	a handle that can be passed to <tt>cancelWakeup()</tt>.
+     */
+    ThreadTime addWakeup(KThread thread, long wakeTime, Condition2 condition) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadTime entry = new ThreadTime(wakeTime, thread, condition);
+	arm(entry);
+	return entry;
+    }
+
+    /**
+     * Cancel a wakeup set up by <tt>addWakeup()</tt>, in O(1) time.
+     * Interrupts must be disabled.
+     *
+     * @param	entry	the handle returned by <tt>addWakeup()</tt>.
+     * @return	<tt>true</tt> if the wakeup was still pending.
+     */
+    boolean cancelWakeup(ThreadTime entry) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return disarm(entry);
+    }
+
+    /**
+     * Run <i>callback</i> once, from the first timer interrupt at least
+     * <i>delay</i> ticks from now. The callback runs with interrupts
+     * disabled, so it must not block. May be called from interrupt context.
+     *
+     * @param	delay		the minimum number of clock ticks to wait.
+     * @param	callback	the code to run when the timer expires.
+     * @return	a handle that can be passed to <tt>cancel()</tt>.
+     */
+    public TimerHandle schedule(long delay, Runnable callback) {
+	return schedulePeriodic(delay, 0, callback);
+    }
+
+    /**
+     * Run <i>callback</i> from the first timer interrupt at least
+     * <i>delay</i> ticks from now, and then every <i>period</i> ticks after
+     * that until it is canceled. Each run is scheduled relative to when the
+     * previous one was due, not when it actually ran, so the timer does not
+     * drift. May be called from interrupt context.
+     *
+     * @param	delay		the minimum number of clock ticks before the
+     *				first run.
+     * @param	period		the number of clock ticks between runs, or 0
+     *				to run only once.
+     * @param	callback	the code to run each time the timer expires.
+     * @return	a handle that can be passed to <tt>cancel()</tt>.
+     */
+    public TimerHandle schedulePeriodic(long delay, long period,
+					Runnable callback) {
+	Lib.assertTrue(delay >= 0 && period >= 0 && callback != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	TimerHandle handle = new TimerHandle(Machine.timer().getTime() + delay,
+					     period, callback);
+	arm(handle);
+
+	Machine.interrupt().restore(intStatus);
+	return handle;
+    }
+
+    /**
+     * Cancel a timer armed by <tt>schedule()</tt> or
+     * <tt>schedulePeriodic()</tt>, in O(1) time. A periodic timer may cancel
+     * itself from its own callback. May be called from interrupt context.
+     *
+     * @param	handle	the timer to cancel.
+     * @return	<tt>true</tt> if the timer would still have run at least
+     *		once more.
+     */
+    public boolean cancel(TimerHandle handle) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean wasPending = !handle.canceled
+	    && (handle.wheel != null || (handle.running && handle.period > 0));
+	handle.canceled = true;
+	disarm(handle);
+
+	Machine.interrupt().restore(intStatus);
+	return wasPending;
+    }
+
+    /**
+     * Return the number of wakeups that have not fired or been canceled.
+     * Interrupts must be disabled.
+     *
+     * @return	the number of pending wakeups.
+     */
+    int pendingWakeups() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return pending;
+    }
+
+    private void arm(TimerHandle entry) {
+	insert(entry);
+	pending++;
+    }
+
+    private boolean disarm(TimerHandle entry) {
+	if (entry.wheel == null)
+	    return false;
+
+	unlink(entry);
+	pending--;
+	return true;
+    }
+
+    /**
+     * Link an entry into the inner wheel if it is due within one turn of it,
+     * otherwise into the outer wheel. Entries that are even further out go
+     * in the last outer slot and are placed again when it is cascaded.
+     */
+    private void insert(TimerHandle entry) {
+	long tick = Math.max(entry.waketime / Stats.TimerTicks, cursor);
+
+	if (tick - cursor < innerSlots) {
+	    link(entry, innerWheel, (int) (tick & innerMask));
+	}
+	else {
+	    long turn = tick >> innerBits;
+	    long curTurn = cursor >> innerBits;
+	    if (turn - curTurn >= outerSlots)
+		turn = curTurn + outerSlots - 1;
+	    link(entry, outerWheel, (int) (turn & outerMask));
+	}
+    }
+
+    /**
+     * Fire every entry in the given inner slot whose time has come. The
+     * expired entries are unlinked first and fired as one batch afterwards,
+     * so callbacks are free to arm and cancel other timers.
+     */
+    private void expire(TimerHandle[] wheel, int slot, long now) {
+	TimerHandle batch = null;
+
+	TimerHandle entry = wheel[slot];
+	while (entry != null) {
+	    TimerHandle next = entry.next;
+	    if (entry.waketime <= now) {
+		unlink(entry);
+		pending--;
+		entry.batchNext = batch;
+		batch = entry;
+	    }
+	    entry = next;
+	}
+
+	while (batch != null) {
+	    entry = batch;
+	    batch = entry.batchNext;
+	    entry.batchNext = null;
+
+	    entry.running = true;
+	    entry.fire();
+	    entry.running = false;
+
+	    //periodic timers are armed again unless the callback canceled them
+	    if (entry.period > 0 && !entry.canceled) {
+		entry.waketime += entry.period;
+		arm(entry);
+	    }
+	}
+    }
+
+    /**
+     * Move the outer slot for the turn of the inner wheel that is starting
+     * down into the inner wheel.
+     */
+    private void cascade() {
+	int slot = (int) ((cursor >> innerBits) & outerMask);
+	TimerHandle entry = outerWheel[slot];
+	outerWheel[slot] = null;
+	while (entry != null) {
+	    TimerHandle next = entry.next;
+	    entry.wheel = null;
+	    entry.prev = entry.next = null;
+	    insert(entry);
+	    entry = next;
+	}
+    }
+
+    private static void link(TimerHandle entry, TimerHandle[] wheel, int slot) {
+	entry.wheel = wheel;
+	entry.slot = slot;
+	entry.prev = null;
+	entry.next = wheel[slot];
+	if (wheel[slot] != null)
+	    wheel[slot].prev = entry;
+	wheel[slot] = entry;
+    }
+
+    private static void unlink(TimerHandle entry) {
+	if (entry.prev != null)
+	    entry.prev.next = entry.next;
+	else
+	    entry.wheel[entry.slot] = entry.next;
+	if (entry.next != null)
+	    entry.next.prev = entry.prev;
+	entry.wheel = null;
+	entry.prev = entry.next = null;
+    }
+
+    private static class SleepTest implements Runnable {
+	SleepTest(long ticks, Semaphore done) {
+	    this.ticks = ticks;
+	    this.done = done;
+	}
+
+	public void run() {
+	    long start = Machine.timer().getTime();
+	    ThreadedKernel.alarm.waitUntil(ticks);
+	    long slept = Machine.timer().getTime() - start;
+	    //must not wake early, and only as late as the next interrupt
+	    Lib.assertTrue(slept >= ticks);
+	    Lib.assertTrue(slept <= ticks + 2*Stats.TimerTicks);
+	    done.V();
+	}
+
+	private long ticks;
+	private Semaphore done;
+    }
+
+    private static class CountTest implements Runnable {
+	CountTest(int limit) {
+	    this.limit = limit;
+	}
+
+	public void run() {
+	    //a periodic timer cancels itself after enough runs
+	    if (++count == limit)
+		Lib.assertTrue(ThreadedKernel.alarm.cancel(handle));
+	}
+
+	private int limit;
+	private int count = 0;
+	private TimerHandle handle;
+    }
+
+    /**
+     * Test that sleepers on both wheels wake on time, and that one-shot,
+     * periodic and canceled callbacks run the right number of times.
+     */
+    public static void selfTest() {
+	long[] waits = { 0, 1, 499, 500, 5000, 31999, 32000, 40000, 100000 };
+	Semaphore done = new Semaphore(0);
+
+	for (int i=0; i<waits.length; i++)
+	    new KThread(new SleepTest(waits[i], done))
+		.setName("alarm test " + i).fork();
+	for (int i=0; i<waits.length; i++)
+	    done.P();
+
+	Alarm alarm = ThreadedKernel.alarm;
+	CountTest once = new CountTest(0);
+	CountTest periodic = new CountTest(5);
+	CountTest canceled = new CountTest(0);
+	alarm.schedule(1000, once);
+	periodic.handle = alarm.schedulePeriodic(0, 700, periodic);
+	TimerHandle handle = alarm.schedule(1000, canceled);
+	Lib.assertTrue(alarm.cancel(handle));
+	Lib.assertTrue(!alarm.cancel(handle));
+
+	alarm.waitUntil(10000);
+	Lib.assertTrue(once.count == 1);
+	Lib.assertTrue(periodic.count == 5);
+	Lib.assertTrue(canceled.count == 0);
+    }
+
+    /**
+     * A timer armed on the alarm. Returned by <tt>schedule()</tt> and
+     * <tt>schedulePeriodic()</tt> so that it can be canceled later.
+     */
+    public static class TimerHandle {
+	TimerHandle(long waketime, long period, Runnable callback) {
+	    this.waketime = waketime;
+	    this.period = period;
+	    this.callback = callback;
+	}
+
+	/**
+	 * Called from the timer interrupt, with interrupts disabled, when
+	 * this timer expires.
+	 */
+	void fire() {
+	    callback.run();
+	}
+
+	long waketime;
+	long period;
+	private Runnable callback;
+	//set by cancel(), so a periodic timer is not armed again
+	boolean canceled = false;
+	//set while fire() runs
+	boolean running = false;
+	//the wheel and slot this entry is linked into, null once it is not
+	TimerHandle[] wheel;
+	int slot;
+	TimerHandle prev, next;
+	//links the entries expired by one pass over a slot
+	TimerHandle batchNext;
+    }
+
+    /** A sleeping thread's wakeup, and the condition it waits on, if any. */
+    static class ThreadTime extends TimerHandle {
+	//the current thread
+	KThread thread;
+	//the condition variable the thread also waits on, if any
+	Condition2 condition;
+	//set once the timer interrupt has woken the thread
+	boolean fired = false;
+
+	ThreadTime(long waketime, KThread currthread, Condition2 condition){
+	    //the wake time, never periodic
+	    super(waketime, 0, null);
+	    //the thread
+	    this.thread = currthread;
+	    this.condition = condition;
+	}
+
+	void fire() {
+	    fired = true;
+	    //a timed condition wait has to leave the condition queue as well
+	    if (condition != null)
+		condition.timedOut(thread);
+	    //after the wait the thread can now move to the ready queue
+	    thread.ready();
+	}
+    }
+
+    private static final int innerBits = 6;
+    private static final int innerSlots = 1 << innerBits;
+    private static final int innerMask = innerSlots - 1;
+    private static final int outerSlots = 64;
+    private static final int outerMask = outerSlots - 1;
+
+    //inner wheel: one slot per timer interrupt period
+    private TimerHandle[] innerWheel = new TimerHandle[innerSlots];
+    //outer wheel: one slot per turn of the inner wheel
+    private TimerHandle[] outerWheel = new TimerHandle[outerSlots];
+    //the tick (time / TimerTicks) whose slot is being expired
+    private long cursor;
+    //armed timers, including sleeping threads
+    private int pending = 0;
 }
@@ -0,0 +1,110 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Barrier</tt> makes a fixed number of threads, its <i>parties</i>,
+ * wait for each other. Each thread calls <tt>await()</tt> when it reaches the
+ * barrier; every thread but the last goes to sleep, and the last one to
+ * arrive wakes all the others in one pass and lets them continue.
+ *
+ * <p>
+ * The barrier resets itself once it trips, so the same parties can use it
+ * again for their next phase of work.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call <tt>await()</tt>
+     *			before any of them can continue. Must be positive.
+     */
+    public Barrier(int parties) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+    }
+
+    /**
+     * Wait until all parties have called <tt>await()</tt> on this barrier.
+     *
+     * @return	the order in which the current thread arrived, from
+     *		<tt>parties - 1</tt> for the first thread down to 0 for the last
+     *		one, which is the thread that tripped the barrier.
+     */
+    public int await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int index = parties - ++arrived;
+
+	if (index > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+	else {
+	    // the last arrival releases everyone and resets the barrier
+	    arrived = 0;
+	    KThread thread;
+	    while ((thread = waitQueue.nextThread()) != null)
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return index;
+    }
+
+    /**
+     * Return the number of threads this barrier waits for.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    private static class PhaseTest implements Runnable {
+	PhaseTest(Barrier barrier, int[] phases, int which) {
+	    this.barrier = barrier;
+	    this.phases = phases;
+	    this.which = which;
+	}
+
+	public void run() {
+	    for (int phase=0; phase<3; phase++) {
+		phases[which] = phase;
+		KThread.yield();
+		barrier.await();
+
+		// nobody can have started the next phase before we all got here
+		for (int i=0; i<phases.length; i++)
+		    Lib.assertTrue(phases[i] >= phase);
+		barrier.await();
+	    }
+	}
+
+	private Barrier barrier;
+	private int[] phases;
+	private int which;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	int parties = 4;
+	Barrier barrier = new Barrier(parties);
+	int[] phases = new int[parties];
+
+	for (int i=1; i<parties; i++)
+	    new KThread(new PhaseTest(barrier, phases, i))
+		.setName("barrier test " + i).fork();
+
+	new PhaseTest(barrier, phases, 0).run();
+    }
+
+    private int parties;
+    private int arrived = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -17,6 +17,8 @@ public class Boat {
 	static int childOnMolokai;
 	static int adultOnOahu;
 	static int adultOnMolokai;
+	static Condition2 boatMoved;
+	static CountDownLatch everyoneOnMolokai;
 
 	public static void selfTest() {
 		BoatGrader b = new BoatGrader();
@@ -49,14 +51,15 @@ public class Boat {
 		childOnOahu = children;
 		adultOnOahu = adults;
 		boat = new Lock();
+		boatMoved = new Condition2(boat);
 		boatAtOahu = true;
+		// counted down when the last person reaches Molokai
+		everyoneOnMolokai = new CountDownLatch(1);
 		// Create threads here. See section 3.4 of the Nachos for Java
 		// Walkthrough linked from the projects page.
 		Runnable ch = new Runnable() {
 			public void run() {
-				while (!simulationComplete) {
-					ChildItinerary();
-				}
+				travel(true);
 			}
 		};
 		for (int i = 1; i <= children; i++) {
@@ -68,9 +71,7 @@ public class Boat {
 
 		Runnable ad = new Runnable() {
 			public void run() {
-				while (!simulationComplete) {
-					AdultItinerary();
-				}
+				travel(false);
 			}
 		};
 		for (int i = 1; i <= adults; i++) {
@@ -80,13 +81,39 @@ public class Boat {
 			adult.fork();
 		}
 
-		while ((childOnOahu > 0) || (adultOnOahu > 0)) {
-			KThread.yield();
-		}
+		// sleep until everyone is on Molokai instead of spinning
+		everyoneOnMolokai.await();
+
+	}
+
+	/**
+	 * Run a person's itinerary until the simulation is complete. A person
+	 * who has nothing to do sleeps until the boat moves, instead of
+	 * checking again and again.
+	 */
+	static void travel(boolean isChild) {
+		boat.acquire();
+		while (!simulationComplete) {
+			boolean moved = isChild ? ChildItinerary() : AdultItinerary();
+			if (!moved) {
+				boatMoved.sleep();
+				continue;
+			}
 
+			// everyone waiting may have something to do now
+			boatMoved.wakeAll();
+			if (simulationComplete)
+				everyoneOnMolokai.countDown();
+		}
+		boat.release();
 	}
 
-	static void AdultItinerary() {
+	/**
+	 * Take an adult's turn. Called with the boat lock held.
+	 *
+	 * @return	true if the boat moved.
+	 */
+	static boolean AdultItinerary() {
 		/*
 		 * This is where you should put your solutions. Make calls to the
 		 * BoatGrader to show that it is synchronized. For example:
@@ -94,204 +121,128 @@ public class Boat {
 		 * across to Molokai
 		 */
 
-		boolean onMolokai = false;
 		KThread temp;// temporary thread for list
-		// Acquire boat lock
-		boat.acquire();
-		// check if thread is on Molokai
-		if (adultsOnMolokai.contains(KThread.currentThread())) {
-			onMolokai = true;
+		// if the thread is on Molokai or the boat is not at Oahu, do nothing
+		if (adultsOnMolokai.contains(KThread.currentThread()) || !boatAtOahu) {
+			return false;
 		}
-		// if the current thread is on Oahu and the boat is at Oahu
-		if (!onMolokai && boatAtOahu) {
-			// if there is at most one child
-			if (childOnOahu <= 1) {
-
-				if (boat.isHeldByCurrentThread()) {
-					// check if the boat is still at Oahu
-					if (boatAtOahu) {
-						// if there is an adult on Oahu, the adult will row to
-						// Molokai
-						if (!adultsOnOahu.isEmpty()) {
-							temp = adultsOnOahu.removeFirst();
-							adultsOnMolokai.addLast(temp);
-							bg.AdultRowToMolokai();
-							adultOnOahu--;
-							adultOnMolokai++;
-							System.out.println("Number of threads in child list Molokai: "+childrenOnMolokai.size());
-							System.out.println("Number of threads in child list Oahu: "+childrenOnOahu.size());
-							System.out.println("On Oahu: "+childOnOahu+"\nOn Molokai: "+childOnMolokai);
-							System.out.println();
-							System.out.println("Number of threads in adult list Molokai: "+adultsOnMolokai.size());
-							System.out.println("Number of threads in adult list Oahu: "+adultsOnOahu.size());
-							System.out.println("On Oahu: "+adultOnOahu+"\nOn Molokai: "+adultOnMolokai);
-						}
-						boatAtOahu=false;
-						System.out.println("Boat is at Molokai.");
-						boat.release();
-
-					} else {
-						// if the boat is no longer at Oahu release the lock
-						boat.release();
-					}
-				}
-			} else {
-				// if there are 2 or more children on Oahu, do nothing
-				boat.release();
-				return;
-			}
-		} else {
-			// if the thread is not on Oahu or the boat is not at Oahu, do
-			// nothing
-			boat.release();
-			return;
+		// if there are 2 or more children on Oahu, they go first
+		if (childOnOahu > 1) {
+			return false;
 		}
+		// if there is an adult on Oahu, the adult will row to Molokai
+		if (!adultsOnOahu.isEmpty()) {
+			temp = adultsOnOahu.removeFirst();
+			adultsOnMolokai.addLast(temp);
+			bg.AdultRowToMolokai();
+			adultOnOahu--;
+			adultOnMolokai++;
+				System.out.println("Number of threads in child list Molokai: "+childrenOnMolokai.size());
+				System.out.println("Number of threads in child list Oahu: "+childrenOnOahu.size());
+				System.out.println("On Oahu: "+childOnOahu+"\nOn Molokai: "+childOnMolokai);
+				System.out.println();
+				System.out.println("Number of threads in adult list Molokai: "+adultsOnMolokai.size());
+				System.out.println("Number of threads in adult list Oahu: "+adultsOnOahu.size());
+				System.out.println("On Oahu: "+adultOnOahu+"\nOn Molokai: "+adultOnMolokai);
+		}
+		boatAtOahu = false;
+		System.out.println("Boat is at Molokai.");
+		return true;
 	}
 
-	static void ChildItinerary() {
-		boolean onMolokai = false;
+	/**
+	 * Take a child's turn. Called with the boat lock held.
+	 *
+	 * @return	true if the boat moved.
+	 */
+	static boolean ChildItinerary() {
 		KThread temp;// temporary thread for list
 		// if the simulation is complete, do nothing
-		boat.acquire();
 		if (simulationComplete) {
-			boat.release();
-			return;
-		} else {
-			
-			// check if the thread is on Molokai
-			if (childrenOnMolokai.contains(KThread.currentThread())) {
-				onMolokai = true;
-			}
-			// if the thread is on Oahu
-			if (!onMolokai) {
-				// if the boat is at Oahu and there are at least 2 children on
-				// Oahu
-				if(childrenOnOahu.isEmpty())
-				{
-					return;
-				}
-				if (boatAtOahu && (childOnOahu >= 2)) {
-					if (boat.isHeldByCurrentThread()) {
-						// check the if the boat is still at Oahu , release the
-						// lock if not
-						if (!boatAtOahu) {
-							boat.release();
-						} else {
-							bg.ChildRowToMolokai();
-							bg.ChildRideToMolokai();
-							// move two children from Oahu to Molokai
-							if ((childOnOahu!=0)&& (childOnOahu>= 2)) {
-								temp = childrenOnOahu.removeFirst();
-								childrenOnMolokai.add(temp);
-								temp = childrenOnOahu.removeFirst();
-								childrenOnMolokai.add(temp);
-								childOnOahu--;
-								childOnOahu--;
-								childOnMolokai++;
-								childOnMolokai++;
-								System.out.println("Number of threads in child list Molokai: "+childrenOnMolokai.size());
-								System.out.println("Number of threads in child list Oahu: "+childrenOnOahu.size());
-								System.out.println("On Oahu: "+childOnOahu+"\nOn Molokai: "+childOnMolokai);
-								System.out.println();
-								System.out.println("Number of threads in adult list Molokai: "+adultsOnMolokai.size());
-								System.out.println("Number of threads in adult list Oahu: "+adultsOnOahu.size());
-								System.out.println("On Oahu: "+adultOnOahu+"\nOn Molokai: "+adultOnMolokai);
-								System.out.println();
-								if((childOnOahu==0)&&(adultOnOahu==0))
-								{
-									simulationComplete=true;
-								}
-
-							}
-							boatAtOahu = false;
-							System.out.println("Boat is at Molokai.");
-							boat.release();
-						}
-					}
-				} else {
-					// if the thread is on Oahu and there no adults on Oahu
-					if (adultsOnOahu.isEmpty()) {
-						// if thread has the boat lock and the boat is at Oahu,
-						// move the child to Molokai
-						if ((boat.isHeldByCurrentThread()) && boatAtOahu) {
-							if (!childrenOnOahu.isEmpty()) {
-								temp = childrenOnOahu.removeFirst();
-								childrenOnMolokai.add(temp);
-								bg.ChildRowToMolokai();
-								childOnOahu--;
-								childOnMolokai++;
-								if(childOnOahu==0)
-								{
-									simulationComplete=true;
-								}
-								System.out.println("Number of threads in child list Molokai: "+childrenOnMolokai.size());
-								System.out.println("Number of threads in child list Oahu: "+childrenOnOahu.size());
-								System.out.println("On Oahu: "+childOnOahu+"\nOn Molokai: "+childOnMolokai);
-								System.out.println();
-								System.out.println("Number of threads in adult list Molokai: "+adultsOnMolokai.size());
-								System.out.println("Number of threads in adult list Oahu: "+adultsOnOahu.size());
-								System.out.println("On Oahu: "+adultOnOahu+"\nOn Molokai: "+adultOnMolokai);
-								System.out.println();
-
-							} else {
-								boat.release();
-								return;
-							}
-							boatAtOahu = false;
-							System.out.println("Boat is at Molokai.");
-							boat.release();
-							simulationComplete = true;
-						} else {
-							// boat is not at Oahu, but thread is.
-							boat.release();
-						}
-					} else {
-						// if there are still adults on Oahu, release the lock
-						boat.release();
-					}
-				}
-			} else {
-				// if the thread is on Molokai and the boat is at Molokai
-				if (!boatAtOahu) {
-					if(childrenOnMolokai.isEmpty())
-					{
-						return;
-					}
-					if (boat.isHeldByCurrentThread()) {
-						// if the boat is still at Molokai and there is at least
-						// one adult on Molokai
-						if (!boatAtOahu) {
-							// move one child back to Oahu
-							if (childOnMolokai!=0&&!simulationComplete) {
-								temp = childrenOnMolokai.remove();
-								childrenOnOahu.add(temp);
-								bg.ChildRowToOahu();
-								childOnMolokai--;
-								childOnOahu++;
-								System.out.println("Number of threads in child list Molokai: "+childrenOnMolokai.size());
-								System.out.println("Number of threads in child list Oahu: "+childrenOnOahu.size());
-								System.out.println("Child: On Oahu: "+childOnOahu+"\nOn Molokai: "+childOnMolokai);
-								System.out.println();
-								System.out.println("Number of threads in adult list Molokai: "+adultsOnMolokai.size());
-								System.out.println("Number of threads in adult list Oahu: "+adultsOnOahu.size());
-								System.out.println("Adult: On Oahu: "+adultOnOahu+"\nOn Molokai: "+adultOnMolokai);
-								System.out.println();
-
-							}
-							boatAtOahu = true;
-							System.out.println("Boat is at Oahu.");
-							boat.release();
-						} else {
-							boat.release();
-						}
-					}
+			return false;
+		}
 
-				} else {
-					boat.release();
+		// if the thread is on Oahu
+		if (!childrenOnMolokai.contains(KThread.currentThread())) {
+			if (childrenOnOahu.isEmpty()) {
+				return false;
+			}
+			// if the boat is at Oahu and there are at least 2 children on
+			// Oahu, move two children from Oahu to Molokai
+			if (boatAtOahu && (childOnOahu >= 2)) {
+				bg.ChildRowToMolokai();
+				bg.ChildRideToMolokai();
+				temp = childrenOnOahu.removeFirst();
+				childrenOnMolokai.add(temp);
+				temp = childrenOnOahu.removeFirst();
+				childrenOnMolokai.add(temp);
+				childOnOahu--;
+				childOnOahu--;
+				childOnMolokai++;
+				childOnMolokai++;
+				System.out.println("Number of threads in child list Molokai: "+childrenOnMolokai.size());
+				System.out.println("Number of threads in child list Oahu: "+childrenOnOahu.size());
+				System.out.println("On Oahu: "+childOnOahu+"\nOn Molokai: "+childOnMolokai);
+				System.out.println();
+				System.out.println("Number of threads in adult list Molokai: "+adultsOnMolokai.size());
+				System.out.println("Number of threads in adult list Oahu: "+adultsOnOahu.size());
+				System.out.println("On Oahu: "+adultOnOahu+"\nOn Molokai: "+adultOnMolokai);
+				System.out.println();
+				if ((childOnOahu == 0) && (adultOnOahu == 0)) {
+					simulationComplete = true;
 				}
+				boatAtOahu = false;
+				System.out.println("Boat is at Molokai.");
+				return true;
+			}
+			// if there are no adults on Oahu and the boat is at Oahu, move
+			// the child to Molokai
+			if (adultsOnOahu.isEmpty() && boatAtOahu) {
+				temp = childrenOnOahu.removeFirst();
+				childrenOnMolokai.add(temp);
+				bg.ChildRowToMolokai();
+				childOnOahu--;
+				childOnMolokai++;
+				System.out.println("Number of threads in child list Molokai: "+childrenOnMolokai.size());
+				System.out.println("Number of threads in child list Oahu: "+childrenOnOahu.size());
+				System.out.println("On Oahu: "+childOnOahu+"\nOn Molokai: "+childOnMolokai);
+				System.out.println();
+				System.out.println("Number of threads in adult list Molokai: "+adultsOnMolokai.size());
+				System.out.println("Number of threads in adult list Oahu: "+adultsOnOahu.size());
+				System.out.println("On Oahu: "+adultOnOahu+"\nOn Molokai: "+adultOnMolokai);
+				System.out.println();
+				boatAtOahu = false;
+				System.out.println("Boat is at Molokai.");
+				simulationComplete = true;
+				return true;
 			}
+			// the boat is not at Oahu, or there are still adults on Oahu
+			return false;
 		}
 
+		// the thread is on Molokai; it can only row back if the boat is here
+		if (boatAtOahu) {
+			return false;
+		}
+		// move one child back to Oahu
+		if (childOnMolokai != 0) {
+			temp = childrenOnMolokai.remove();
+			childrenOnOahu.add(temp);
+			bg.ChildRowToOahu();
+			childOnMolokai--;
+			childOnOahu++;
+				System.out.println("Number of threads in child list Molokai: "+childrenOnMolokai.size());
+				System.out.println("Number of threads in child list Oahu: "+childrenOnOahu.size());
+				System.out.println("Child: On Oahu: "+childOnOahu+"\nOn Molokai: "+childOnMolokai);
+				System.out.println();
+				System.out.println("Number of threads in adult list Molokai: "+adultsOnMolokai.size());
+				System.out.println("Number of threads in adult list Oahu: "+adultsOnOahu.size());
+				System.out.println("Adult: On Oahu: "+adultOnOahu+"\nOn Molokai: "+adultOnMolokai);
+			System.out.println();
+		}
+		boatAtOahu = true;
+		System.out.println("Boat is at Oahu.");
+		return true;
 	}
 
 	static void SampleItinerary() {
@@ -0,0 +1,194 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A synchronized queue with a fixed capacity. Like <tt>SynchList</tt>, but
+ * backed by an array used as a ring buffer, so adding an element never
+ * allocates, and the queue can never grow past its capacity. Producers get
+ * back-pressure when it is full: <tt>add()</tt> blocks, and <tt>offer()</tt>
+ * fails.
+ */
+public class BoundedSynchList {
+    /**
+     * Allocate a new bounded synchronized queue.
+     *
+     * @param	capacity	the maximum number of elements in the queue.
+     *				Must be positive.
+     */
+    public BoundedSynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	items = new Object[capacity];
+	lock = new Lock();
+	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, blocking until the
+     * queue is not full if necessary. If another thread is waiting in
+     * <tt>removeFirst()</tt>, it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     */
+    public void add(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	while (count == items.length)
+	    listFull.sleep();
+	enqueue(o);
+	lock.release();
+    }
+
+    /**
+     * Add the specified object to the end of the queue if there is room,
+     * without blocking.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, <tt>false</tt> if the
+     *		queue was full.
+     */
+    public boolean offer(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	boolean added = (count < items.length);
+	if (added)
+	    enqueue(o);
+	lock.release();
+
+	return added;
+    }
+
+    /**
+     * Remove an object from the front of the queue, blocking until the queue
+     * is non-empty if necessary.
+     *
+     * @return	the element removed from the front of the queue.
+     */
+    public Object removeFirst() {
+	Object o;
+
+	lock.acquire();
+	while (count == 0)
+	    listEmpty.sleep();
+	o = dequeue();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if there is one, without
+     * blocking.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public Object poll() {
+	Object o = null;
+
+	lock.acquire();
+	if (count > 0)
+	    o = dequeue();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove as many objects as are available, up to <tt>batch.length</tt>,
+     * from the front of the queue into <i>batch</i>, without blocking. Takes
+     * the lock once for the whole batch.
+     *
+     * @param	batch	the array where the removed elements will be stored.
+     * @return	the number of elements removed.
+     */
+    public int drainTo(Object[] batch) {
+	lock.acquire();
+
+	int amount = Math.min(batch.length, count);
+	for (int i=0; i<amount; i++) {
+	    batch[i] = items[head];
+	    items[head] = null;
+	    head = (head + 1) % items.length;
+	}
+	count -= amount;
+
+	// every producer waiting for room may now fit
+	if (amount > 0)
+	    listFull.wakeAll();
+
+	lock.release();
+
+	return amount;
+    }
+
+    private void enqueue(Object o) {
+	items[(head + count) % items.length] = o;
+	count++;
+	listEmpty.wake();
+    }
+
+    private Object dequeue() {
+	Object o = items[head];
+	items[head] = null;
+	head = (head + 1) % items.length;
+	count--;
+	listFull.wake();
+
+	return o;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(BoundedSynchList ping, BoundedSynchList pong) {
+	    this.ping = ping;
+	    this.pong = pong;
+	}
+
+	public void run() {
+	    for (int i=0; i<10; i++)
+		pong.add(ping.removeFirst());
+	}
+
+	private BoundedSynchList ping;
+	private BoundedSynchList pong;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	BoundedSynchList ping = new BoundedSynchList(2);
+	BoundedSynchList pong = new BoundedSynchList(2);
+
+	new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+	for (int i=0; i<10; i++) {
+	    Integer o = new Integer(i);
+	    ping.add(o);
+	    Lib.assertTrue(pong.removeFirst() == o);
+	}
+
+	// a full queue refuses offers, and drains in order
+	BoundedSynchList list = new BoundedSynchList(3);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(list.offer(new Integer(i)));
+	Lib.assertTrue(!list.offer(new Integer(3)));
+
+	Object[] batch = new Object[5];
+	Lib.assertTrue(list.drainTo(batch) == 3);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(((Integer) batch[i]).intValue() == i);
+	Lib.assertTrue(list.poll() == null);
+    }
+
+    private Object[] items;
+    private int head = 0;
+    private int count = 0;
+    private Lock lock;
+    private Condition listEmpty;
+    private Condition listFull;
+}
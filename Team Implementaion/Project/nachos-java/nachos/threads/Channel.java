@@ -0,0 +1,222 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> is a bounded pipe of 32-bit words between threads. Unlike
+ * a <tt>Communicator</tt>, a speaker does not wait for a listener: words are
+ * stored in a fixed-size ring buffer, and a thread only blocks when it wants
+ * to speak into a full channel or listen to an empty one. Words are
+ * delivered in the order they were spoken.
+ *
+ * <p>
+ * Whole arrays of words can be moved in one call, which takes the lock once
+ * per call instead of once per word.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can hold before
+     *				speakers block. Must be positive.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new int[capacity];
+	lock = new Lock();
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+    }
+
+    /**
+     * Put <i>word</i> into this channel, waiting while it is full.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	lock.acquire();
+
+	while (count == buffer.length)
+	    notFull.sleep();
+
+	buffer[(head + count) % buffer.length] = word;
+	if (count++ == 0)
+	    notEmpty.wakeAll();
+
+	lock.release();
+    }
+
+    /**
+     * Put all of <i>words</i> into this channel. Same as
+     * <tt>speak(words, 0, words.length)</tt>.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Put <i>length</i> words into this channel, copying as many as fit at
+     * a time and waiting only while the channel is full. Does not return
+     * until every word has been put into the channel.
+     *
+     * @param	words	the array containing the words to transfer.
+     * @param	offset	the first word to transfer from the array.
+     * @param	length	the number of words to transfer.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0
+		       && offset+length <= words.length);
+
+	lock.acquire();
+
+	while (length > 0) {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    boolean wasEmpty = (count == 0);
+	    int amount = Math.min(length, buffer.length - count);
+	    int tail = (head + count) % buffer.length;
+
+	    // copy in at most two runs, around the end of the ring
+	    int first = Math.min(amount, buffer.length - tail);
+	    System.arraycopy(words, offset, buffer, tail, first);
+	    System.arraycopy(words, offset+first, buffer, 0, amount-first);
+
+	    count += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (wasEmpty)
+		notEmpty.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Take the oldest word out of this channel, waiting while it is empty.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+	if (count-- == buffer.length)
+	    notFull.wakeAll();
+
+	lock.release();
+
+	return word;
+    }
+
+    /**
+     * Take words out of this channel into <i>words</i>. Same as
+     * <tt>listen(words, 0, words.length)</tt>.
+     *
+     * @param	words	the array where the words will be stored.
+     * @return	the number of words transferred.
+     */
+    public int listen(int[] words) {
+	return listen(words, 0, words.length);
+    }
+
+    /**
+     * Take up to <i>length</i> of the oldest words out of this channel.
+     * Waits only while the channel is empty; once there is at least one word,
+     * takes as many as are available (up to <i>length</i>) and returns. A
+     * zero-length listen returns 0 right away, without waiting.
+     *
+     * @param	words	the array where the words will be stored.
+     * @param	offset	the first word to store in the array.
+     * @param	length	the maximum number of words to transfer.
+     * @return	the number of words transferred.
+     */
+    public int listen(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0
+		       && offset+length <= words.length);
+
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	boolean wasFull = (count == buffer.length);
+	int amount = Math.min(length, count);
+
+	// copy out in at most two runs, around the end of the ring
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, words, offset, first);
+	System.arraycopy(buffer, 0, words, offset+first, amount-first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	if (wasFull)
+	    notFull.wakeAll();
+
+	lock.release();
+
+	return amount;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(Channel channel) {
+	    this.channel = channel;
+	}
+
+	public void run() {
+	    int[] words = new int[7];
+	    int next = 0;
+	    while (next < testWords) {
+		for (int i=0; i<words.length; i++)
+		    words[i] = next++;
+		channel.speak(words);
+	    }
+	    channel.speak(-1);
+	}
+
+	private Channel channel;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	Channel channel = new Channel(5);
+
+	// nothing to take, so an empty channel does not block
+	Lib.assertTrue(channel.listen(new int[0]) == 0);
+
+	new KThread(new PingTest(channel)).setName("ping").fork();
+
+	int[] words = new int[3];
+	int expected = 0;
+	while (expected < testWords) {
+	    int amount = channel.listen(words, 0,
+					Math.min(words.length, testWords-expected));
+	    for (int i=0; i<amount; i++)
+		Lib.assertTrue(words[i] == expected++);
+	}
+	Lib.assertTrue(channel.listen() == -1);
+    }
+
+    private static final int testWords = 70;
+
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+}
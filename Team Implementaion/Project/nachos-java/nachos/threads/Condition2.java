@@ -1,5 +1,7 @@
 package nachos.threads;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import nachos.machine.*;
 
 /**
@@ -33,26 +35,60 @@ public class Condition2 {
      * current thread must hold the associated lock. The thread will
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      */
-    @SuppressWarnings("static-access")
-	public void sleep() {
+    public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	
-	//updated code
-	
+	//disable the interupts before releasing, so a wake() can't slip in
+	boolean intStatus = Machine.interrupt().disable();
 	conditionLock.release();
-	//disable the interupts
-	Machine.interrupt().disable();
-	//add the thread to the queue
-	queue.add(KThread.currentThread());
+	//add the thread to the queue, with no timeout
+	queue.put(KThread.currentThread(), null);
+	long start = Machine.timer().getTime();
 	//put the thread to sleep
-	KThread.currentThread().sleep();
-	//reenable interupts
-	Machine.interrupt().enable();
+	KThread.sleep();
+	//restore interupts
+	Machine.interrupt().restore(intStatus);
+	if (conditionLock.profile != null)
+		conditionLock.profile.conditionWait(Machine.timer().getTime() - start);
 	//reacquire the lock
 	conditionLock.acquire();
 	
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting once at least <i>ticks</i>
+     * clock ticks have passed. The thread waits on this condition variable
+     * and on the alarm at the same time; whichever fires first removes it
+     * from the other, so the thread is only woken once. The current thread
+     * must hold the associated lock, and will reacquire it before returning.
+     *
+     * @param	ticks	the minimum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, <tt>false</tt> if it timed out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	KThread thread = KThread.currentThread();
+	long wakeTime = Machine.timer().getTime() + ticks;
+
+	boolean intStatus = Machine.interrupt().disable();
+	conditionLock.release();
+	//park on both the condition queue and the alarm queue
+	Alarm.ThreadTime timeout = ThreadedKernel.alarm.addWakeup(thread, wakeTime, this);
+	queue.put(thread, timeout);
+	long start = Machine.timer().getTime();
+	KThread.sleep();
+	Machine.interrupt().restore(intStatus);
+	if (conditionLock.profile != null)
+	    conditionLock.profile.conditionWait(Machine.timer().getTime() - start);
+
+	conditionLock.acquire();
+
+	//the alarm marks the entry when it is the one that woke us
+	return !timeout.fired;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -61,16 +97,21 @@ public class Condition2 {
 	//check if the current thread has the lock
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	//disable the interupts
-	Machine.interrupt().disable();
+	boolean intStatus = Machine.interrupt().disable();
 	//if there is a thread in the queue, remove it and put it on the ready queue
 	if(!queue.isEmpty()) {
 	
-		KThread thread = queue.pop();
+		Iterator<Map.Entry<KThread,Alarm.ThreadTime>> first = queue.entrySet().iterator();
+		Map.Entry<KThread,Alarm.ThreadTime> waiter = first.next();
+		first.remove();
+		//a timed waiter also has to leave the alarm queue
+		if (waiter.getValue() != null)
+			ThreadedKernel.alarm.cancelWakeup(waiter.getValue());
 		
-		thread.ready();
+		waiter.getKey().ready();
 	}
-	//enable the interupts
-	Machine.interrupt().enable();
+	//restore the interupts
+	Machine.interrupt().restore(intStatus);
 	
     }
 
@@ -81,14 +122,80 @@ public class Condition2 {
     public void wakeAll() {
     	//check if the current thread has the lock
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		//remove all of the threads in the queue
+		//wake all of the threads in the queue
 		while(!queue.isEmpty()) {
 		
-			queue.pop();
+			wake();
 	
 		}
     }
 
+    /**
+     * Called by the alarm, with interrupts disabled, when a thread in
+     * <tt>sleepFor()</tt> times out before it is woken. Removes the thread
+     * from this condition variable in O(1) time.
+     *
+     * @param	thread	the thread that timed out.
+     */
+    void timedOut(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	queue.remove(thread);
+    }
+
+    private static class SleepForTest implements Runnable {
+	SleepForTest(Lock lock, Condition2 cond, long ticks, boolean[] result) {
+	    this.lock = lock;
+	    this.cond = cond;
+	    this.ticks = ticks;
+	    this.result = result;
+	}
+
+	public void run() {
+	    lock.acquire();
+	    result[0] = cond.sleepFor(ticks);
+	    result[1] = true;
+	    lock.release();
+	}
+
+	private Lock lock;
+	private Condition2 cond;
+	private long ticks;
+	private boolean[] result;
+    }
+
+    /**
+     * Test that <tt>sleepFor()</tt> reports a timeout and a wake correctly.
+     */
+    public static void selfTest() {
+	Lock lock = new Lock();
+	Condition2 cond = new Condition2(lock);
+
+	// nobody wakes the first waiter, so it has to time out
+	boolean[] timedOut = new boolean[2];
+	new KThread(new SleepForTest(lock, cond, 1000, timedOut))
+	    .setName("sleepFor timeout").fork();
+	ThreadedKernel.alarm.waitUntil(3000);
+	Lib.assertTrue(timedOut[1] && !timedOut[0]);
+
+	// the second waiter is woken long before its timeout
+	boolean[] woken = new boolean[2];
+	new KThread(new SleepForTest(lock, cond, 100000, woken))
+	    .setName("sleepFor wake").fork();
+	KThread.yield();
+	lock.acquire();
+	cond.wake();
+	lock.release();
+	ThreadedKernel.alarm.waitUntil(1000);
+	Lib.assertTrue(woken[1] && woken[0]);
+
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(cond.queue.isEmpty());
+	Lib.assertTrue(ThreadedKernel.alarm.pendingWakeups() == 0);
+	Machine.interrupt().restore(intStatus);
+    }
+
     private Lock conditionLock;
-    private LinkedList<KThread> queue = new LinkedList<KThread>();
+    //sleeping threads in arrival order, with their alarm entry if timed
+    private LinkedHashMap<KThread,Alarm.ThreadTime> queue = new LinkedHashMap<KThread,Alarm.ThreadTime>();
 }
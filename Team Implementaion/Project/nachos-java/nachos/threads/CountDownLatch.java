@@ -0,0 +1,118 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> lets threads wait until a number of events have
+ * happened, for example until a group of forked threads have all finished.
+ * It has two operations:
+ *
+ * <ul>
+ * <li><tt>countDown()</tt>: decrement the count. When it reaches zero, wake
+ * up every thread waiting in <tt>await()</tt>.
+ * <li><tt>await()</tt>: wait until the count is zero.
+ * </ul>
+ *
+ * <p>
+ * Once the count reaches zero it stays there, and <tt>await()</tt> returns
+ * immediately from then on. Waiting threads sleep on a <tt>ThreadQueue</tt>
+ * rather than yielding in a loop, so they cost nothing until the last
+ * <tt>countDown()</tt> wakes them all in one pass.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new latch.
+     *
+     * @param	count	the number of <tt>countDown()</tt> calls needed before
+     *			waiting threads are released. Must not be negative.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+    }
+
+    /**
+     * Atomically decrement the count, and if it reaches zero wake up every
+     * thread sleeping in <tt>await()</tt>. Does nothing if the count is
+     * already zero.
+     */
+    public void countDown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0 && --count == 0) {
+	    KThread thread;
+	    while ((thread = waitQueue.nextThread()) != null)
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait for the count to reach zero.
+     */
+    public void await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count. As with semaphores, the value may have
+     * changed by the time the caller looks at it.
+     *
+     * @return	the current count.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    private static class CountTest implements Runnable {
+	CountTest(CountDownLatch start, CountDownLatch done, int[] finished) {
+	    this.start = start;
+	    this.done = done;
+	    this.finished = finished;
+	}
+
+	public void run() {
+	    start.await();
+	    finished[0]++;
+	    done.countDown();
+	}
+
+	private CountDownLatch start;
+	private CountDownLatch done;
+	private int[] finished;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	CountDownLatch start = new CountDownLatch(1);
+	CountDownLatch done = new CountDownLatch(5);
+	int[] finished = new int[1];
+
+	for (int i=0; i<5; i++)
+	    new KThread(new CountTest(start, done, finished))
+		.setName("latch test " + i).fork();
+
+	// nobody may get past start until it is counted down
+	KThread.yield();
+	Lib.assertTrue(finished[0] == 0);
+
+	start.countDown();
+	done.await();
+	Lib.assertTrue(finished[0] == 5 && done.getCount() == 0);
+    }
+
+    private int count;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -308,6 +308,18 @@ public class KThread {
 	
 	
 	
+    }
+
+    /**
+     * Give the idle thread some work to do each time it runs, such as waking
+     * up a kernel thread that does background housekeeping. Since the idle
+     * thread must never block, neither may the task.
+     *
+     * @param	task	the task to run whenever the CPU is idle, or
+     *			<tt>null</tt> to let the idle thread just yield.
+     */
+    public static void setIdleTask(Runnable task) {
+	idleTask = task;
     }
 
     /**
@@ -323,7 +335,13 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (idleTask != null)
+			idleTask.run();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -481,6 +499,7 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    private static Runnable idleTask = null;
 
 
 }
@@ -18,12 +18,43 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A lock may be given a name, which identifies it in the contention report
+ * printed when the kernel halts if <tt>Lock.profile</tt> is set in
+ * <tt>nachos.conf</tt>.
+ *
+ * @see	nachos.threads.LockProfile
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new named lock. The lock will initially be <i>free</i>.
+     *
+     * @param	name	the name of this lock in the contention report.
+     */
+    public Lock(String name) {
+	this(ThreadedKernel.scheduler.newThreadQueue(true),
+	     LockProfile.enabled() ? new LockProfile(name) : null);
+    }
+
+    /**
+     * Allocate a lock with the specified wait queue and profile. A subclass
+     * that overrides every operation with a lock of its own passes
+     * <tt>null</tt> for both.
+     *
+     * @param	waitQueue	the queue of threads waiting for this lock.
+     * @param	profile		the contention statistics, or <tt>null</tt>.
+     */
+    Lock(ThreadQueue waitQueue, LockProfile profile) {
+	this.waitQueue = waitQueue;
+	this.profile = profile;
     }
 
     /**
@@ -35,6 +66,8 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	KThread holder = lockHolder;
+	long start = (profile != null) ? Machine.timer().getTime() : 0;
 
 	if (lockHolder != null) {
 	    waitQueue.waitForAccess(thread);
@@ -47,6 +80,11 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (profile != null) {
+	    acquiredAt = Machine.timer().getTime();
+	    profile.acquired(acquiredAt - start, holder, thread);
+	}
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -58,6 +96,9 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (profile != null)
+	    profile.released(Machine.timer().getTime() - acquiredAt);
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
@@ -73,7 +114,10 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /** Contention statistics, or <tt>null</tt> if profiling is off. */
+    LockProfile profile;
+    private long acquiredAt;
+
     private KThread lockHolder = null;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue waitQueue;
 }
@@ -0,0 +1,161 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Contention statistics for one <tt>Lock</tt>. A lock only has a profile
+ * when profiling is turned on with the <tt>nachos.conf</tt> key
+ * <tt>Lock.profile</tt>; otherwise the lock's profile is <tt>null</tt> and
+ * the only cost is a null check on acquire and release.
+ *
+ * <p>
+ * A report of every profiled lock, hottest first, is printed when the kernel
+ * halts. Profiles are only held weakly for the report, so the profile of a
+ * lock that has been garbage collected is dropped along with it.
+ */
+public class LockProfile {
+    /**
+     * Allocate a profile for a lock, and remember it for the report.
+     *
+     * @param	name	the name of the lock, or <tt>null</tt>.
+     */
+    LockProfile(String name) {
+	this.name = (name != null) ? name : "unnamed lock " + (numUnnamed++);
+
+	// forget the profiles of locks that are gone
+	Reference<? extends LockProfile> gone;
+	while ((gone = collected.poll()) != null)
+	    profiles.remove(gone);
+
+	profiles.add(new WeakReference<LockProfile>(this, collected));
+    }
+
+    /**
+     * Record that the lock was acquired.
+     *
+     * @param	waitTicks	the ticks spent waiting for the lock.
+     * @param	holder		the thread holding the lock when the waiter
+     *				arrived, or <tt>null</tt> if it was free.
+     * @param	waiter		the thread that acquired the lock.
+     */
+    void acquired(long waitTicks, KThread holder, KThread waiter) {
+	acquisitions++;
+	if (holder == null)
+	    return;
+
+	contended++;
+	totalWait += waitTicks;
+	if (waitTicks >= maxWait) {
+	    maxWait = waitTicks;
+	    maxWaitHolder = holder.toString();
+	    maxWaitWaiter = waiter.toString();
+	}
+    }
+
+    /**
+     * Record that the lock was released after being held for
+     * <i>holdTicks</i> ticks.
+     */
+    void released(long holdTicks) {
+	int bucket = 0;
+	long limit = 10;
+	while (holdTicks >= limit && bucket < holdHistogram.length-1) {
+	    bucket++;
+	    limit *= 10;
+	}
+	holdHistogram[bucket]++;
+    }
+
+    /**
+     * Record that a thread slept for <i>ticks</i> ticks on a condition
+     * variable using the lock.
+     */
+    void conditionWait(long ticks) {
+	conditionWaits++;
+	conditionWaitTicks += ticks;
+    }
+
+    /**
+     * Return whether lock profiling is turned on.
+     *
+     * @return	<tt>true</tt> if new locks should get a profile.
+     */
+    static boolean enabled() {
+	return enabled;
+    }
+
+    /**
+     * Print the profile of every live lock that was ever acquired, ordered
+     * by the total time threads spent waiting for it. Prints nothing if
+     * profiling is turned off.
+     */
+    public static void printReport() {
+	if (!enabled)
+	    return;
+
+	ArrayList<LockProfile> used = new ArrayList<LockProfile>();
+	for (Reference<LockProfile> reference : profiles) {
+	    LockProfile profile = reference.get();
+	    if (profile != null && profile.acquisitions > 0)
+		used.add(profile);
+	}
+	Collections.sort(used, new Comparator<LockProfile>() {
+		public int compare(LockProfile a, LockProfile b) {
+		    return Long.compare(b.totalWait, a.totalWait);
+		}
+	    });
+
+	System.out.println("Lock profile (" + used.size() + " locks used):");
+	for (LockProfile p : used) {
+	    System.out.println("  " + p.name + ": " + p.acquisitions
+			       + " acquisitions, " + p.contended
+			       + " contended, wait ticks total " + p.totalWait
+			       + " max " + p.maxWait);
+	    if (p.contended > 0)
+		System.out.println("    worst wait: " + p.maxWaitWaiter
+				   + " behind " + p.maxWaitHolder);
+	    if (p.conditionWaits > 0)
+		System.out.println("    condition waits " + p.conditionWaits
+				   + ", ticks " + p.conditionWaitTicks);
+
+	    StringBuffer hist = new StringBuffer("    hold ticks:");
+	    long limit = 10;
+	    for (int i=0; i<p.holdHistogram.length; i++, limit *= 10) {
+		if (i < p.holdHistogram.length-1)
+		    hist.append(" <" + limit);
+		else
+		    hist.append(" >=" + limit/10);
+		hist.append(":" + p.holdHistogram[i]);
+	    }
+	    System.out.println(hist);
+	}
+	System.out.println();
+    }
+
+    private String name;
+    private long acquisitions = 0;
+    private long contended = 0;
+    private long totalWait = 0;
+    private long maxWait = 0;
+    private String maxWaitHolder, maxWaitWaiter;
+    private long conditionWaits = 0;
+    private long conditionWaitTicks = 0;
+    /** Hold times: under 10 ticks, under 100, ..., and 100000 or more. */
+    private long[] holdHistogram = new long[6];
+
+    private static boolean enabled = Config.getBoolean("Lock.profile", false);
+    /** Every live profile, held weakly so that its lock can be collected. */
+    private static HashSet<Reference<LockProfile>> profiles =
+	new HashSet<Reference<LockProfile>>();
+    private static ReferenceQueue<LockProfile> collected =
+	new ReferenceQueue<LockProfile>();
+    private static int numUnnamed = 0;
+}
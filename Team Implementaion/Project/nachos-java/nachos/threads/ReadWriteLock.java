@@ -0,0 +1,325 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * <i>readers</i> at once, or by exactly one <i>writer</i>. It is meant for
+ * read-mostly kernel structures, where serializing every reader behind a
+ * plain <tt>Lock</tt> wastes concurrency.
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for the
+ * lock, then become one of its readers.
+ * <li><tt>acquireWrite()</tt>: wait until there are no readers and no writer,
+ * then become the only writer.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers block until
+ * every waiting writer has had its turn. Access is handed off directly on
+ * release, the same way <tt>Lock</tt> does it, so a woken thread never has to
+ * recheck the lock state. Waiting writers do not donate priority: while
+ * readers hold the lock there is no single thread to donate to.
+ *
+ * <p>
+ * The write side is also available as a <tt>Lock</tt> through
+ * <tt>writeLock()</tt>, so it can be handed to a <tt>Condition2</tt>.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+	writeLock = new WriteLock();
+    }
+
+    /**
+     * Atomically wait until no writer holds or is waiting for this lock, and
+     * then become one of its readers. The current thread must not hold the
+     * write lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || waitingWriters > 0) {
+	    // the releasing thread counts us as a reader before waking us
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    readers++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically stop being a reader of this lock. If this was the last
+     * reader, hand the lock to a waiting writer, if there is one.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(readers > 0 && writer == null);
+
+	if (--readers == 0)
+	    handOff();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until this lock has no readers and no writer, and then
+     * become its writer. The current thread must not already hold the write
+     * lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || readers > 0) {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release the write lock. The next waiting writer gets the
+     * lock if there is one; otherwise every waiting reader is let in at once.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	handOff();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds the write lock.
+     *
+     * @return	true if the current thread holds the write lock.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Return the write side of this lock as a <tt>Lock</tt>. Acquiring and
+     * releasing it is the same as calling <tt>acquireWrite()</tt> and
+     * <tt>releaseWrite()</tt>, so it may be used as the lock of a
+     * <tt>Condition2</tt>.
+     *
+     * @return	the write side of this lock.
+     */
+    public Lock writeLock() {
+	return writeLock;
+    }
+
+    /**
+     * Give the free lock to whoever should have it next. Must be called with
+     * interrupts disabled, when there is no writer and no reader.
+     */
+    private void handOff() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (waitingWriters > 0) {
+	    writer = writeQueue.nextThread();
+	    Lib.assertTrue(writer != null);
+	    waitingWriters--;
+	    writer.ready();
+	    return;
+	}
+
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    readers++;
+	    thread.ready();
+	}
+    }
+
+    /**
+     * The write side of a <tt>ReadWriteLock</tt>, viewed as a plain lock. It
+     * has no wait queue or profile of its own.
+     */
+    private class WriteLock extends Lock {
+	WriteLock() {
+	    super(null, null);
+	}
+
+	public void acquire() {
+	    acquireWrite();
+	}
+
+	public void release() {
+	    releaseWrite();
+	}
+
+	public boolean isHeldByCurrentThread() {
+	    return isWriteHeldByCurrentThread();
+	}
+    }
+
+    private static class Worker implements Runnable {
+	Worker(ReadWriteLock rwLock, Lock lock, int which, int[] shared,
+	       Semaphore done) {
+	    this.rwLock = rwLock;
+	    this.lock = lock;
+	    this.which = which;
+	    this.shared = shared;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<benchOps; i++) {
+		boolean write = ((i + which) % benchWriteEvery == 0);
+
+		if (rwLock == null)
+		    lock.acquire();
+		else if (write)
+		    rwLock.acquireWrite();
+		else
+		    rwLock.acquireRead();
+
+		// simulate blocking work (e.g. a disk read) inside the
+		// critical section
+		int seen = shared[0];
+		ThreadedKernel.alarm.waitUntil(benchWork);
+		if (write)
+		    shared[0] = seen + 1;
+		else
+		    Lib.assertTrue(shared[0] == seen);
+
+		if (rwLock == null)
+		    lock.release();
+		else if (write)
+		    rwLock.releaseWrite();
+		else
+		    rwLock.releaseRead();
+	    }
+	    done.V();
+	}
+
+	private ReadWriteLock rwLock;
+	private Lock lock;
+	private int which;
+	private int[] shared;
+	private Semaphore done;
+    }
+
+    /**
+     * Run the read-heavy benchmark mix against either a plain <tt>Lock</tt>
+     * or a <tt>ReadWriteLock</tt>.
+     *
+     * @param	useReadWrite	<tt>true</tt> to use a <tt>ReadWriteLock</tt>.
+     * @return	the number of ticks it took all the workers to finish.
+     */
+    private static long runBenchmark(boolean useReadWrite) {
+	ReadWriteLock rwLock = useReadWrite ? new ReadWriteLock() : null;
+	Lock lock = useReadWrite ? null : new Lock();
+	int[] shared = new int[1];
+	Semaphore done = new Semaphore(0);
+
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<benchThreads; i++) {
+	    new KThread(new Worker(rwLock, lock, i, shared, done))
+		.setName("rw bench " + i).fork();
+	}
+	for (int i=0; i<benchThreads; i++)
+	    done.P();
+
+	Lib.assertTrue(shared[0] == benchThreads*benchOps/benchWriteEvery);
+
+	return Machine.timer().getTime() - start;
+    }
+
+    /**
+     * Test if this module is working. If the <tt>nachos.conf</tt> key
+     * <tt>ReadWriteLock.benchmark</tt> is set, also compare its throughput
+     * on a read-heavy mix against a plain <tt>Lock</tt>.
+     */
+    public static void selfTest() {
+	Lib.debug(dbgThread, "Enter ReadWriteLock.selfTest");
+
+	// the write side must work as the lock of a condition variable
+	ReadWriteLock rw = new ReadWriteLock();
+	Condition2 cond = new Condition2(rw.writeLock());
+	rw.writeLock().acquire();
+	Lib.assertTrue(rw.isWriteHeldByCurrentThread());
+	cond.wake();
+	rw.writeLock().release();
+	Lib.assertTrue(!rw.isWriteHeldByCurrentThread());
+
+	// readers share the lock, and a writer waits for all of them
+	final ReadWriteLock shared = new ReadWriteLock();
+	final int[] state = new int[1];
+	shared.acquireRead();
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    shared.acquireRead();
+		    state[0] = 1;
+		    shared.releaseRead();
+		}
+	    }).setName("rw reader");
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    shared.acquireWrite();
+		    state[0] = 2;
+		    shared.releaseWrite();
+		}
+	    }).setName("rw writer");
+	reader.fork();
+	reader.join();
+	Lib.assertTrue(state[0] == 1);
+	writer.fork();
+	KThread.yield();
+	Lib.assertTrue(state[0] == 1);
+	shared.releaseRead();
+	writer.join();
+	Lib.assertTrue(state[0] == 2);
+
+	if (!Config.getBoolean("ReadWriteLock.benchmark", false))
+	    return;
+
+	long lockTicks = runBenchmark(false);
+	long rwTicks = runBenchmark(true);
+
+	int ops = benchThreads*benchOps;
+	System.out.println("ReadWriteLock: " + ops + " ops (1 write in "
+			   + benchWriteEvery + ") took " + rwTicks
+			   + " ticks, Lock took " + lockTicks + " ticks");
+    }
+
+    private static final char dbgThread = 't';
+    private static final int benchThreads = 8;
+    private static final int benchOps = 20;
+    private static final int benchWriteEvery = 10;
+    private static final int benchWork = 100;
+
+    private KThread writer = null;
+    private int readers = 0;
+    private int waitingWriters = 0;
+    private Lock writeLock;
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
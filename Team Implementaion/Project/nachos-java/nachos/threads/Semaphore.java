@@ -2,6 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value.
  * A semaphore has only two operations:
@@ -20,6 +23,20 @@ import nachos.machine.*;
  * because by the time you get the value, a context switch might have occurred,
  * and some other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the
  * true value might now be different.
+ *
+ * <p>
+ * Both operations also come in bulk forms, <tt>P(n)</tt> and <tt>V(n)</tt>,
+ * which wait for or add <i>n</i> units at once, so a batch of work can be
+ * signaled with one call instead of one per item. <tt>tryP()</tt> never waits,
+ * and <tt>P(n, timeout)</tt> gives up after a number of clock ticks.
+ *
+ * <p>
+ * Waiters are served strictly in the order the scheduler's thread queue gives
+ * them: a thread waiting for several units is not passed by later threads
+ * that want fewer, so it cannot be starved. Units are handed directly to the
+ * waiters they satisfy. A waiter that times out is only marked as such; its
+ * entry is skipped when the queue reaches it, so a thread that waits again
+ * queues up behind everyone who came after its first wait.
  */
 public class Semaphore {
     /**
@@ -35,17 +52,84 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+	P(1);
+    }
+
+    /**
+     * Atomically wait until this semaphore's value is at least <i>n</i>, and
+     * subtract <i>n</i> from it.
+     *
+     * @param	n	the number of units to take. Must be positive.
+     */
+    public void P(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
+	if (!take(n)) {
+	    // V() hands us the units before waking us
+	    enqueue(new Waiter(KThread.currentThread(), n));
 	    KThread.sleep();
 	}
-	else {
-	    value--;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Like <tt>P(n)</tt>, but give up once at least <i>timeoutTicks</i> clock
+     * ticks have passed without the units becoming available.
+     *
+     * @param	n		the number of units to take. Must be positive.
+     * @param	timeoutTicks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the units were taken, <tt>false</tt> if the
+     *		wait timed out.
+     */
+    public boolean P(int n, long timeoutTicks) {
+	Lib.assertTrue(n > 0 && timeoutTicks >= 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean acquired = take(n);
+	if (!acquired) {
+	    final Waiter waiter = new Waiter(KThread.currentThread(), n);
+	    waiter.timer = ThreadedKernel.alarm.schedule(timeoutTicks,
+		new Runnable() {
+		    public void run() { timeout(waiter); }
+		});
+	    enqueue(waiter);
+	    KThread.sleep();
+	    acquired = !waiter.timedOut;
 	}
 
 	Machine.interrupt().restore(intStatus);
+
+	return acquired;
+    }
+
+    /**
+     * Atomically decrement this semaphore if it is non-zero, without waiting.
+     *
+     * @return	<tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean tryP() {
+	return tryP(1);
+    }
+
+    /**
+     * Atomically subtract <i>n</i> from this semaphore if its value is at
+     * least <i>n</i>, without waiting.
+     *
+     * @param	n	the number of units to take. Must be positive.
+     * @return	<tt>true</tt> if the units were taken.
+     */
+    public boolean tryP(int n) {
+	Lib.assertTrue(n > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+	boolean acquired = take(n);
+	Machine.interrupt().restore(intStatus);
+
+	return acquired;
     }
 
     /**
@@ -53,27 +137,141 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+	V(1);
+    }
+
+    /**
+     * Atomically add <i>n</i> to this semaphore, and in the same pass wake up
+     * every waiting thread that the new value can satisfy, in order.
+     *
+     * @param	n	the number of units to add. Must be positive.
+     */
+    public void V(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
+	value += n;
+	grant();
+	
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Take <i>n</i> units if nobody is already waiting and there are enough.
+     * Interrupts must be disabled.
+     */
+    private boolean take(int n) {
+	if (numWaiting > 0 || value < n)
+	    return false;
+
+	value -= n;
+	return true;
+    }
+
+    /**
+     * Queue the current thread to wait for units. Interrupts must be
+     * disabled.
+     */
+    private void enqueue(Waiter waiter) {
+	LinkedList<Waiter> entries = waiters.get(waiter.thread);
+	if (entries == null) {
+	    entries = new LinkedList<Waiter>();
+	    waiters.put(waiter.thread, entries);
+	}
+	entries.add(waiter);
+	numWaiting++;
+
+	waitQueue.waitForAccess(waiter.thread);
+    }
+
+    /**
+     * Hand units to waiters from the front of the queue for as long as the
+     * value can satisfy them. Interrupts must be disabled.
+     */
+    private void grant() {
+	while (true) {
+	    // the thread queue cannot be peeked, so the first waiter is taken
+	    // off it and kept here until there are units enough for it
+	    while (head == null) {
+		KThread thread = waitQueue.nextThread();
+		if (thread == null)
+		    return;
+
+		// a thread's entries leave the queue in the order it made them
+		LinkedList<Waiter> entries = waiters.get(thread);
+		Waiter waiter = entries.removeFirst();
+		if (entries.isEmpty())
+		    waiters.remove(thread);
+		if (!waiter.timedOut)
+		    head = waiter;
+	    }
+
+	    if (head.n > value)
+		return;
+
+	    value -= head.n;
+	    numWaiting--;
+	    head.granted = true;
+	    if (head.timer != null)
+		ThreadedKernel.alarm.cancel(head.timer);
+	    head.thread.ready();
+	    head = null;
+	}
+    }
+
+    /**
+     * Called from the timer interrupt when a <tt>P(n, timeout)</tt> waiter
+     * has waited long enough.
+     */
+    private void timeout(Waiter waiter) {
+	if (waiter.granted || waiter.timedOut)
+	    return;
+
+	waiter.timedOut = true;
+	numWaiting--;
+	if (head == waiter)
+	    head = null;
+
+	waiter.thread.ready();
+
+	if (numWaiting == 0) {
+	    // nobody is left to wait, so drop the stale entries now
+	    while (waitQueue.nextThread() != null)
+		;
+	    waiters.clear();
 	}
 	else {
-	    value++;
+	    // the waiter may have been blocking smaller requests behind it
+	    grant();
 	}
-	
-	Machine.interrupt().restore(intStatus);
+    }
+
+    private static class Waiter {
+	Waiter(KThread thread, int n) {
+	    this.thread = thread;
+	    this.n = n;
+	}
+
+	KThread thread;
+	int n;
+	Alarm.TimerHandle timer = null;
+	boolean granted = false, timedOut = false;
     }
 
     private static class PingTest implements Runnable {
 	PingTest(Semaphore ping, Semaphore pong) {
+	    this(ping, pong, 10);
+	}
+
+	PingTest(Semaphore ping, Semaphore pong, int rounds) {
 	    this.ping = ping;
 	    this.pong = pong;
+	    this.rounds = rounds;
 	}
 	
 	public void run() {
-	    for (int i=0; i<10; i++) {
+	    for (int i=0; i<rounds; i++) {
 		ping.P();
 		pong.V();
 	    }
@@ -81,6 +279,7 @@ public class Semaphore {
 
 	private Semaphore ping;
 	private Semaphore pong;
+	private int rounds;
     }
 
     /**
@@ -96,9 +295,81 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// one V(n) wakes every waiter it can satisfy
+	Semaphore bulk = new Semaphore(0);
+	Semaphore done = new Semaphore(0);
+	for (int i=0; i<3; i++)
+	    new KThread(new PingTest(bulk, done, 1)).setName("bulk").fork();
+	KThread.yield();
+	bulk.V(3);
+	done.P(3);
+	Lib.assertTrue(!bulk.tryP());
+
+	// a timed wait gives up, and a later V() still counts
+	Lib.assertTrue(!bulk.P(2, 1000));
+	bulk.V(2);
+	Lib.assertTrue(bulk.tryP(2));
+
+	// a waiter that times out at the front of the queue stops blocking
+	// the one behind it
+	final Semaphore timed = new Semaphore(0);
+	final boolean[] acquired = new boolean[] { true };
+	new KThread(new Runnable() {
+		public void run() { acquired[0] = timed.P(5, 500); }
+	    }).setName("timed").fork();
+	KThread.yield();
+	new KThread(new PingTest(timed, done, 1)).setName("behind").fork();
+	ThreadedKernel.alarm.waitUntil(1000);
+	timed.V();
+	done.P();
+	Lib.assertTrue(!acquired[0] && !timed.tryP());
+
+	// a thread that waits again after timing out goes behind the threads
+	// that queued in the meantime, even while a larger request at the
+	// front keeps its old entry in the queue
+	final Semaphore again = new Semaphore(0);
+	final StringBuffer order = new StringBuffer();
+	new KThread(new Runnable() {
+		public void run() {
+		    again.P(5);
+		    order.append('C');
+		}
+	    }).setName("front").fork();
+	KThread.yield();
+	new KThread(new Runnable() {
+		public void run() {
+		    if (!again.P(1, 500))
+			again.P();
+		    order.append('A');
+		}
+	    }).setName("again").fork();
+	KThread.yield();
+	new KThread(new Runnable() {
+		public void run() {
+		    again.P();
+		    order.append('B');
+		}
+	    }).setName("queued").fork();
+	ThreadedKernel.alarm.waitUntil(1000);
+	again.V(7);
+	while (order.length() < 3)
+	    KThread.yield();
+	Lib.assertTrue(order.toString().equals("CBA"));
     }
 
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+    /**
+     * For each thread with entries in the wait queue, the waiter of each
+     * entry, oldest first. Entries of waiters that timed out stay until the
+     * queue reaches them.
+     */
+    private HashMap<KThread,LinkedList<Waiter>> waiters =
+	new HashMap<KThread,LinkedList<Waiter>>();
+    /** The number of waiters that have neither been served nor timed out. */
+    private int numWaiting = 0;
+    /** The waiter taken off the queue that is next to be served, if any. */
+    private Waiter head = null;
 }
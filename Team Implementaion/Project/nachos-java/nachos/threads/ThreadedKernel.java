@@ -41,14 +41,23 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>BoundedSynchList</tt>, <tt>Alarm</tt>,
+     * <tt>Condition2</tt>, <tt>ReadWriteLock</tt>, <tt>Channel</tt>,
+     * <tt>Barrier</tt>, <tt>CountDownLatch</tt>, and <tt>ElevatorBank</tt>
+     * classes. Note that the autograder never calls this method, so it is
+     * safe to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	BoundedSynchList.selfTest();
+	Alarm.selfTest();
+	Condition2.selfTest();
+	ReadWriteLock.selfTest();
+	Channel.selfTest();
+	Barrier.selfTest();
+	CountDownLatch.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -62,9 +71,11 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel, printing the lock contention report if lock
+     * profiling is on. Never returns.
      */
     public void terminate() {
+	LockProfile.printReport();
 	Machine.halt();
     }
 
@@ -0,0 +1,112 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * An asynchronous read or write started by a user process with the
+ * <tt>aread()</tt> or <tt>awrite()</tt> syscall. The transfer is carried out
+ * by one of the kernel's I/O threads, straight between the file and the
+ * process's frames, while the process keeps running. The process collects
+ * the result later with <tt>await()</tt> or <tt>apoll()</tt>.
+ *
+ * <p>
+ * A request on a file with a file pointer reads or writes at the position
+ * the pointer had when the request was made, and the pointer is advanced
+ * past the whole request right away. So several outstanding requests on the
+ * same file cover consecutive ranges, no matter which I/O thread gets to
+ * which request first. If fewer bytes are transferred than asked for, the
+ * pointer is moved back to the end of what was transferred on completion,
+ * but only if it is still where this request left it; a later request or
+ * read or write that has moved it since keeps its own position. A stream
+ * has no pointer, and is simply read or written when the request is carried
+ * out.
+ *
+ * <p>
+ * A request holds a reference to its file, so closing the descriptor while
+ * the transfer is outstanding does not close the file under the I/O thread.
+ */
+public class AsyncIORequest {
+    /**
+     * Describe a transfer, and claim its range of the file.
+     *
+     * @param	process	the process whose memory is transferred.
+     * @param	file	the file or stream to transfer to or from.
+     * @param	vaddr	the first byte of the process's buffer.
+     * @param	length	the number of bytes to transfer.
+     * @param	read	<tt>true</tt> to read from the file into memory.
+     */
+    public AsyncIORequest(UserProcess process, OpenFile file, int vaddr,
+			  int length, boolean read) {
+	this.process = process;
+	this.file = file;
+	this.vaddr = vaddr;
+	this.length = length;
+	this.read = read;
+
+	UserKernel.referenceFile(file);
+
+	position = file.tell();
+	if (position >= 0)
+	    file.seek(position + length);
+    }
+
+    /**
+     * Carry out the transfer and signal its completion. Called by an I/O
+     * thread.
+     */
+    public void run() {
+	if (read)
+	    result = process.readFromFile(file, position, vaddr, length);
+	else
+	    result = process.writeToFile(file, position, vaddr, length);
+
+	// give back the part of the claimed range that was not transferred,
+	// unless the pointer has moved on since
+	if (position >= 0 && result < length
+	    && file.tell() == position + length)
+	    file.seek(position + Math.max(result, 0));
+
+	UserKernel.releaseFile(file);
+	done = true;
+	finished.V();
+    }
+
+    /**
+     * Wait for the transfer to complete. May be called more than once.
+     *
+     * @return	the number of bytes transferred, or -1 on error.
+     */
+    public int await() {
+	finished.P();
+	finished.V();
+	return result;
+    }
+
+    /**
+     * Test whether the transfer has completed, without waiting.
+     *
+     * @return	<tt>true</tt> if <tt>await()</tt> would return immediately.
+     */
+    public boolean isDone() {
+	return done;
+    }
+
+    /**
+     * Return the result of a completed transfer.
+     *
+     * @return	the number of bytes transferred, or -1 on error.
+     */
+    public int getResult() {
+	Lib.assertTrue(done);
+	return result;
+    }
+
+    private UserProcess process;
+    private OpenFile file;
+    private int vaddr, length, position;
+    private boolean read;
+    private int result;
+    private boolean done = false;
+    private Semaphore finished = new Semaphore(0);
+}
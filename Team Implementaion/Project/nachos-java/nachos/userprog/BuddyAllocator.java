@@ -0,0 +1,303 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A buddy allocator over a range of physical pages. Pages are handed out in
+ * blocks of <tt>2<sup>order</sup></tt> pages, aligned to their size, so a
+ * block is always physically contiguous. A block is split in half as often
+ * as needed to satisfy a request, and a freed block is merged with its
+ * <i>buddy</i> (the other half of the block it was split from) whenever the
+ * buddy is free too.
+ *
+ * <p>
+ * Each order has its own free list. The lists are linked through arrays
+ * indexed by page number, so no memory is allocated after construction, and
+ * removing a buddy from the middle of its list is O(1).
+ *
+ * <p>
+ * A buddy allocator is not synchronized. Its owner must make sure only one
+ * thread uses it at a time.
+ */
+public class BuddyAllocator {
+    /**
+     * Allocate a new buddy allocator with every page free.
+     *
+     * @param	numPages	the number of pages to manage. Need not be a
+     *				power of two.
+     */
+    public BuddyAllocator(int numPages) {
+	Lib.assertTrue(numPages > 0);
+
+	this.numPages = numPages;
+
+	maxOrder = 0;
+	while ((2 << maxOrder) <= numPages)
+	    maxOrder++;
+
+	freeOrder = new byte[numPages];
+	next = new int[numPages];
+	prev = new int[numPages];
+	heads = new int[maxOrder+1];
+	freeBlocks = new int[maxOrder+1];
+
+	for (int i=0; i<numPages; i++)
+	    freeOrder[i] = -1;
+	for (int order=0; order<=maxOrder; order++)
+	    heads[order] = -1;
+
+	// freeing every page coalesces them into the largest possible blocks
+	for (int ppn=0; ppn<numPages; ppn++)
+	    free(ppn, 0);
+
+	numSplits = numMerges = 0;
+    }
+
+    /**
+     * Return the smallest order whose blocks hold at least <i>pages</i>
+     * pages.
+     *
+     * @param	pages	the number of pages. Must be positive.
+     * @return	the order.
+     */
+    public static int orderFor(int pages) {
+	Lib.assertTrue(pages > 0);
+
+	int order = 0;
+	while ((1 << order) < pages)
+	    order++;
+	return order;
+    }
+
+    /**
+     * Allocate a block of <tt>2<sup>order</sup></tt> contiguous pages,
+     * splitting a larger free block if there is no free block of this order.
+     *
+     * @param	order	the order of the block.
+     * @return	the first page of the block, or -1 if no block that large is
+     *		free.
+     */
+    public int allocate(int order) {
+	Lib.assertTrue(order >= 0);
+	if (order > maxOrder)
+	    return -1;
+
+	int found = order;
+	while (found <= maxOrder && heads[found] == -1)
+	    found++;
+	if (found > maxOrder)
+	    return -1;
+
+	int base = heads[found];
+	unlink(base, found);
+
+	// give the upper halves back until the block is the right size
+	while (found > order) {
+	    found--;
+	    push(base + (1 << found), found);
+	    numSplits++;
+	}
+
+	numFree -= 1 << order;
+	return base;
+    }
+
+    /**
+     * Allocate exactly <i>pages</i> contiguous pages. A block of the next
+     * power of two is allocated, and the pages past the end of the request
+     * are freed again right away, so at most <i>pages</i> pages stay
+     * allocated.
+     *
+     * @param	pages	the number of pages. Must be positive.
+     * @return	the first page of the range, or -1 if no free block is large
+     *		enough.
+     */
+    public int allocateRange(int pages) {
+	int order = orderFor(pages);
+	int base = allocate(order);
+	if (base == -1)
+	    return -1;
+
+	freeRange(base + pages, (1 << order) - pages);
+	return base;
+    }
+
+    /**
+     * Free a block allocated by <tt>allocate()</tt>, merging it with its
+     * buddy as many times as possible.
+     *
+     * @param	base	the first page of the block.
+     * @param	order	the order the block was allocated with.
+     */
+    public void free(int base, int order) {
+	Lib.assertTrue(base >= 0 && base + (1 << order) <= numPages);
+	Lib.assertTrue(base % (1 << order) == 0);
+	Lib.assertTrue(freeOrder[base] == -1);
+
+	numFree += 1 << order;
+
+	while (order < maxOrder) {
+	    int buddy = base ^ (1 << order);
+	    if (buddy >= numPages || freeOrder[buddy] != order)
+		break;
+
+	    unlink(buddy, order);
+	    base = Math.min(base, buddy);
+	    order++;
+	    numMerges++;
+	}
+
+	push(base, order);
+    }
+
+    /**
+     * Free any range of allocated pages, for example one allocated by
+     * <tt>allocateRange()</tt> or a few pages out of the middle of a block.
+     * The range is freed as the largest aligned blocks that fit in it.
+     *
+     * @param	base	the first page to free.
+     * @param	pages	the number of pages to free.
+     */
+    public void freeRange(int base, int pages) {
+	while (pages > 0) {
+	    int order = 0;
+	    while (order < maxOrder && base % (2 << order) == 0
+		   && (2 << order) <= pages)
+		order++;
+
+	    free(base, order);
+	    base += 1 << order;
+	    pages -= 1 << order;
+	}
+    }
+
+    /**
+     * Return the number of pages that are not allocated.
+     *
+     * @return	the number of free pages.
+     */
+    public int getNumFreePages() {
+	return numFree;
+    }
+
+    /**
+     * Return the number of free blocks of the specified order.
+     *
+     * @param	order	the order.
+     * @return	the number of free blocks of that order.
+     */
+    public int getFreeBlocks(int order) {
+	return (order <= maxOrder) ? freeBlocks[order] : 0;
+    }
+
+    /**
+     * Return the size of the largest free block.
+     *
+     * @return	the number of pages in the largest free block, or 0 if no
+     *		page is free.
+     */
+    public int getLargestFreeBlock() {
+	for (int order=maxOrder; order>=0; order--) {
+	    if (freeBlocks[order] > 0)
+		return 1 << order;
+	}
+	return 0;
+    }
+
+    /**
+     * Return how fragmented free memory is: the percentage of free pages
+     * that are not in the largest free block. 0 means every free page could
+     * be handed out as one contiguous block.
+     *
+     * @return	the external fragmentation, from 0 to 100.
+     */
+    public int getFragmentation() {
+	if (numFree == 0)
+	    return 0;
+
+	return 100 - 100*getLargestFreeBlock()/numFree;
+    }
+
+    /**
+     * Return a one-line summary of the allocator's free lists and counters,
+     * for debugging.
+     *
+     * @return	the summary.
+     */
+    public String getStats() {
+	StringBuffer buf = new StringBuffer();
+	buf.append(numFree + "/" + numPages + " pages free, free blocks:");
+	for (int order=0; order<=maxOrder; order++)
+	    buf.append(" " + (1 << order) + "x" + freeBlocks[order]);
+	buf.append(", fragmentation " + getFragmentation() + "%, splits "
+		   + numSplits + ", merges " + numMerges);
+	return buf.toString();
+    }
+
+    private void push(int base, int order) {
+	freeOrder[base] = (byte) order;
+	prev[base] = -1;
+	next[base] = heads[order];
+	if (heads[order] != -1)
+	    prev[heads[order]] = base;
+	heads[order] = base;
+	freeBlocks[order]++;
+    }
+
+    private void unlink(int base, int order) {
+	Lib.assertTrue(freeOrder[base] == order);
+
+	if (prev[base] != -1)
+	    next[prev[base]] = next[base];
+	else
+	    heads[order] = next[base];
+	if (next[base] != -1)
+	    prev[next[base]] = prev[base];
+
+	freeOrder[base] = -1;
+	freeBlocks[order]--;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	// an odd size, so the top of memory can't form a full-size block
+	BuddyAllocator buddy = new BuddyAllocator(37);
+	Lib.assertTrue(buddy.getNumFreePages() == 37);
+	Lib.assertTrue(buddy.getFreeBlocks(5) == 1
+		       && buddy.getFreeBlocks(2) == 1
+		       && buddy.getFreeBlocks(0) == 1);
+
+	// splitting hands out aligned blocks
+	int a = buddy.allocate(0);
+	int b = buddy.allocate(3);
+	Lib.assertTrue(b % 8 == 0 && (a < b || a >= b+8));
+
+	// an exact range leaves the tail of its block free
+	int c = buddy.allocateRange(5);
+	Lib.assertTrue(c != -1 && buddy.getNumFreePages() == 37-1-8-5);
+
+	// freeing everything coalesces back to the initial blocks
+	buddy.free(a, 0);
+	buddy.free(b, 3);
+	buddy.freeRange(c, 5);
+	Lib.assertTrue(buddy.getNumFreePages() == 37);
+	Lib.assertTrue(buddy.getFreeBlocks(5) == 1
+		       && buddy.getFragmentation() == 100 - 100*32/37);
+
+	Lib.assertTrue(buddy.allocate(6) == -1);
+	Lib.assertTrue(buddy.allocate(5) == 0);
+    }
+
+    private int numPages;
+    private int maxOrder;
+    private int numFree = 0;
+    /** For the first page of each free block, its order; otherwise -1. */
+    private byte[] freeOrder;
+    /** The free lists, linked through the first page of each block. */
+    private int[] next, prev;
+    private int[] heads;
+    private int[] freeBlocks;
+    private int numSplits, numMerges;
+}
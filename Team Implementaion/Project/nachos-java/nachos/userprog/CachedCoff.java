@@ -0,0 +1,88 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A parsed COFF executable held entirely in kernel memory: its entry point,
+ * its section headers, and the contents of its initialized sections. It is
+ * made once from a <tt>Coff</tt> read from disk, and after that loading a
+ * section page is a copy, with no file system access at all.
+ *
+ * <p>
+ * A cached executable is shared by every process running it, so
+ * <tt>close()</tt> does nothing.
+ */
+public class CachedCoff extends Coff {
+    /**
+     * Read every section of an executable into a new cached copy. Pages are
+     * read through a temporary frame, so this fails if no frame is free.
+     *
+     * @param	coff	the executable, as loaded from disk.
+     * @return	the cached copy, or <tt>null</tt> if no frame was free.
+     */
+    public static CachedCoff snapshot(Coff coff) {
+	int ppn = UserKernel.addPage();
+	if (ppn == -1)
+	    return null;
+
+	CachedCoff cached = new CachedCoff(coff, ppn);
+
+	UserKernel.removePage(ppn);
+	return cached;
+    }
+
+    private CachedCoff(Coff coff, int ppn) {
+	entryPoint = coff.getEntryPoint();
+
+	sections = new CoffSection[coff.getNumSections()];
+	for (int s=0; s<sections.length; s++)
+	    sections[s] = new Section(this, coff.getSection(s), ppn);
+    }
+
+    public int getEntryPoint() {
+	return entryPoint;
+    }
+
+    public void close() {
+    }
+
+    /** A section whose contents are held in a byte array. */
+    private static class Section extends CoffSection {
+	Section(CachedCoff coff, CoffSection section, int ppn) {
+	    // CoffSection does not say whether a section is code; loading
+	    // does not need to know
+	    super(coff, section.getName(), false, section.isReadOnly(),
+		  section.getLength(), section.getFirstVPN());
+
+	    initialized = section.isInitialzed();
+	    if (!initialized)
+		return;
+
+	    byte[] memory = Machine.processor().getMemory();
+	    contents = new byte[numPages*pageSize];
+	    for (int spn=0; spn<numPages; spn++) {
+		section.loadPage(spn, ppn);
+		System.arraycopy(memory, ppn*pageSize,
+				 contents, spn*pageSize, pageSize);
+	    }
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    byte[] memory = Machine.processor().getMemory();
+	    if (initialized)
+		System.arraycopy(contents, spn*pageSize,
+				 memory, ppn*pageSize, pageSize);
+	    else
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	private byte[] contents;
+    }
+
+    private static final int pageSize = Processor.pageSize;
+}
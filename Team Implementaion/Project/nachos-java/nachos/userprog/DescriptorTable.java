@@ -0,0 +1,152 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A process's table of file descriptors. The table starts small and doubles
+ * in size as descriptors are used, up to a fixed limit.
+ *
+ * <p>
+ * New descriptors are always the lowest unused number, as in UNIX. Finding
+ * it takes constant time: one bit per descriptor records whether it is in
+ * use, and a summary word has a bit set for every word of that bitmap that
+ * is full, so the lowest free descriptor is found with two
+ * trailing-zero counts.
+ */
+public class DescriptorTable {
+    /**
+     * Allocate a new, empty descriptor table.
+     *
+     * @param	limit	the largest number of descriptors the table may hold.
+     *			Must be between 1 and <tt>maxLimit</tt>.
+     */
+    public DescriptorTable(int limit) {
+	Lib.assertTrue(limit > 0 && limit <= maxLimit);
+
+	this.limit = limit;
+	files = new OpenFile[Math.min(limit, initialSize)];
+	used = new long[(limit+63)/64];
+    }
+
+    /**
+     * Return the file referred to by a descriptor.
+     *
+     * @param	fd	the descriptor.
+     * @return	the file, or <tt>null</tt> if <i>fd</i> is not in use.
+     */
+    public OpenFile get(int fd) {
+	if (fd < 0 || fd >= files.length)
+	    return null;
+
+	return files[fd];
+    }
+
+    /**
+     * Give a file the lowest unused descriptor.
+     *
+     * @param	file	the file.
+     * @return	the new descriptor, or -1 if the table is full.
+     */
+    public int add(OpenFile file) {
+	Lib.assertTrue(file != null);
+
+	int word = Long.numberOfTrailingZeros(~fullWords);
+	if (word >= used.length)
+	    return -1;
+
+	int fd = word*64 + Long.numberOfTrailingZeros(~used[word]);
+	if (fd >= limit)
+	    return -1;
+
+	put(fd, file);
+	return fd;
+    }
+
+    /**
+     * Make a descriptor refer to a file, whether or not it is in use.
+     *
+     * @param	fd	the descriptor. Must be less than the table's limit.
+     * @param	file	the file.
+     * @return	the file <i>fd</i> referred to before, or <tt>null</tt> if
+     *		it was not in use.
+     */
+    public OpenFile put(int fd, OpenFile file) {
+	Lib.assertTrue(fd >= 0 && fd < limit && file != null);
+
+	if (fd >= files.length) {
+	    int size = Math.min(limit, Math.max(fd+1, files.length*2));
+	    OpenFile[] grown = new OpenFile[size];
+	    System.arraycopy(files, 0, grown, 0, files.length);
+	    files = grown;
+	}
+
+	OpenFile previous = files[fd];
+	files[fd] = file;
+
+	used[fd/64] |= 1L << (fd%64);
+	if (used[fd/64] == -1L)
+	    fullWords |= 1L << (fd/64);
+
+	return previous;
+    }
+
+    /**
+     * Stop using a descriptor.
+     *
+     * @param	fd	the descriptor.
+     * @return	the file <i>fd</i> referred to, or <tt>null</tt> if it was not
+     *		in use.
+     */
+    public OpenFile remove(int fd) {
+	OpenFile file = get(fd);
+	if (file == null)
+	    return null;
+
+	files[fd] = null;
+	used[fd/64] &= ~(1L << (fd%64));
+	fullWords &= ~(1L << (fd/64));
+
+	return file;
+    }
+
+    /**
+     * Return one more than the highest descriptor that may be in use. Every
+     * descriptor in use is less than this.
+     *
+     * @return	the current size of the table.
+     */
+    public int size() {
+	return files.length;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	DescriptorTable table = new DescriptorTable(130);
+	OpenFile file = new OpenFile();
+
+	for (int fd=0; fd<130; fd++)
+	    Lib.assertTrue(table.add(file) == fd);
+	Lib.assertTrue(table.add(file) == -1 && table.size() == 130);
+
+	// the lowest free descriptor is reused first
+	Lib.assertTrue(table.remove(100) == file && table.remove(70) == file);
+	Lib.assertTrue(table.get(70) == null && table.remove(70) == null);
+	Lib.assertTrue(table.add(file) == 70 && table.add(file) == 100);
+
+	Lib.assertTrue(table.put(5, new OpenFile()) == file);
+	Lib.assertTrue(table.get(5) != file);
+    }
+
+    /** The largest limit a table can have: one summary bit per word. */
+    public static final int maxLimit = 64*64;
+    private static final int initialSize = 16;
+
+    private int limit;
+    private OpenFile[] files;
+    /** One bit per descriptor, set while it is in use. */
+    private long[] used;
+    /** One bit per word of <tt>used</tt>, set while that word is full. */
+    private long fullWords = 0;
+}
@@ -0,0 +1,306 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The kernel's cache of loaded executable images. The read-only sections of
+ * an executable (its code and constant data) are loaded into frames once,
+ * and every process running that executable maps the same frames, so
+ * launching a program again costs neither the disk reads nor the memory.
+ * The parsed executable itself is kept too, as a <tt>CachedCoff</tt>, so
+ * its headers are not read again and its writable sections are copied from
+ * kernel memory instead of the disk.
+ *
+ * <p>
+ * Images are keyed by the executable's name, and remember the identity of
+ * the contents they were loaded from: the file's modification version, as
+ * counted by <tt>UserKernel.getFileVersion()</tt>, and its length. An image
+ * whose file has changed since is dropped the next time it is looked up, and
+ * the image of a removed file is dropped right away.
+ *
+ * <p>
+ * The cache holds one reference to each frame it has loaded, so an image
+ * stays loaded after the last process using it exits, until
+ * <tt>trim()</tt> reclaims it. At most <tt>ImageCache.maxImages</tt> images
+ * are kept, as set in <tt>nachos.conf</tt>; beyond that, the least recently
+ * used ones are dropped. An image that a process is still running only loses
+ * its parsed executable, which the process holds on to itself, until
+ * <tt>evict()</tt> finds it unused after the process exits.
+ */
+public class ImageCache {
+    /**
+     * Allocate a new, empty image cache.
+     */
+    public ImageCache() {
+	lock = new Lock("ImageCache.lock");
+
+	maxImages = Config.getInteger("ImageCache.maxImages", 8);
+	Lib.assertTrue(maxImages > 0);
+    }
+
+    /**
+     * Return the parsed executable in an open file. On a hit, the file is
+     * closed without reading anything from it. On a miss, the executable is
+     * parsed and read in full, and the file closed, unless there is no free
+     * frame to read it through; then the executable is returned uncached,
+     * still reading from the file.
+     *
+     * @param	name		the name of the executable.
+     * @param	version		the executable's modification version.
+     * @param	executable	the open executable. The cache takes ownership
+     *				of it, unless an exception is thrown.
+     * @return	the executable.
+     * @exception	EOFException	if the executable is corrupt.
+     */
+    public Coff getCoff(String name, int version, OpenFile executable)
+	throws EOFException {
+	lock.acquire();
+
+	Image image = lookup(name, version, executable.length());
+	if (image.coff != null) {
+	    numCoffHits++;
+	    lock.release();
+	    executable.close();
+	    return image.coff;
+	}
+
+	Coff coff;
+	try {
+	    coff = new Coff(executable);
+	}
+	catch (EOFException e) {
+	    lock.release();
+	    throw e;
+	}
+
+	image.coff = CachedCoff.snapshot(coff);
+	if (image.coff != null) {
+	    coff.close();
+	    coff = image.coff;
+	}
+
+	lock.release();
+	return coff;
+    }
+
+    /**
+     * Return the frames holding a read-only section of an executable,
+     * loading the section on first use. Each frame gets a reference for the
+     * caller, which it drops with <tt>UserKernel.freePages()</tt>.
+     *
+     * @param	name		the name of the executable.
+     * @param	version		the executable's modification version.
+     * @param	length		the executable's length in bytes.
+     * @param	coff		the executable.
+     * @param	sectionNumber	the section to map. Must be read-only.
+     * @return	the physical page numbers of the section's pages, or
+     *		<tt>null</tt> if there is not enough free memory to load it.
+     */
+    public int[] mapSection(String name, int version, int length, Coff coff,
+			    int sectionNumber) {
+	CoffSection section = coff.getSection(sectionNumber);
+	Lib.assertTrue(section.isReadOnly());
+
+	lock.acquire();
+
+	Image image = lookup(name, version, length);
+	if (image.sections == null)
+	    image.sections = new int[coff.getNumSections()][];
+
+	int[] ppns = image.sections[sectionNumber];
+	if (ppns == null) {
+	    ppns = UserKernel.allocatePages(section.getLength());
+	    if (ppns == null && trimLocked(image) > 0)
+		ppns = UserKernel.allocatePages(section.getLength());
+	    if (ppns == null) {
+		lock.release();
+		return null;
+	    }
+
+	    for (int i=0; i<ppns.length; i++)
+		section.loadPage(i, ppns[i]);
+	    image.sections[sectionNumber] = ppns;
+	    numLoads++;
+	}
+	else {
+	    numHits++;
+	}
+
+	UserKernel.referencePages(ppns);
+
+	lock.release();
+	return ppns;
+    }
+
+    /**
+     * Return the image of the current version of an executable, dropping a
+     * stale one, and make it the most recently used.
+     */
+    private Image lookup(String name, int version, int length) {
+	Image image = images.get(name);
+	if (image != null
+	    && (image.version != version || image.length != length)) {
+	    images.remove(name);
+	    release(image);
+	    image = null;
+	}
+	if (image == null) {
+	    image = new Image(version, length);
+	    images.put(name, image);
+	    evictLocked(image);
+	}
+
+	return image;
+    }
+
+    /**
+     * Drop the image of an executable, because its file has been removed.
+     * Processes still running it keep their own references.
+     *
+     * @param	name	the name of the executable.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+
+	Image image = images.remove(name);
+	if (image != null)
+	    release(image);
+
+	lock.release();
+    }
+
+    /**
+     * Drop every image that no process is running, freeing its frames and
+     * its parsed executable.
+     *
+     * @return	the number of physical pages freed.
+     */
+    public int trim() {
+	lock.acquire();
+	int freed = trimLocked(null);
+	lock.release();
+
+	return freed;
+    }
+
+    /**
+     * Like <tt>trim()</tt>, but keep the image <i>keep</i>, which is being
+     * loaded.
+     */
+    private int trimLocked(Image keep) {
+	int freed = 0;
+
+	for (Iterator<Image> i=images.values().iterator(); i.hasNext(); ) {
+	    Image image = i.next();
+	    if (image != keep && isUnused(image)) {
+		freed += release(image);
+		i.remove();
+	    }
+	}
+
+	return freed;
+    }
+
+    /**
+     * Drop the least recently used images that no process is running while
+     * there are more than <tt>ImageCache.maxImages</tt>. Called when a
+     * process exits, since the cache may only have gone over the limit
+     * because that process was running one of its images.
+     */
+    public void evict() {
+	lock.acquire();
+	evictLocked(null);
+	lock.release();
+    }
+
+    /**
+     * Drop the least recently used images, other than <i>keep</i>, while
+     * there are more than <tt>maxImages</tt>. One that a process is still
+     * running keeps its frames, but not its parsed executable.
+     */
+    private void evictLocked(Image keep) {
+	Iterator<Image> i = images.values().iterator();
+	while (images.size() > maxImages && i.hasNext()) {
+	    Image image = i.next();
+	    if (image == keep)
+		continue;
+
+	    if (isUnused(image)) {
+		release(image);
+		i.remove();
+	    }
+	    else {
+		image.coff = null;
+	    }
+	}
+    }
+
+    /**
+     * Test whether the cache holds the only reference to every page of an
+     * image.
+     */
+    private boolean isUnused(Image image) {
+	for (int s=0; image.sections != null && s<image.sections.length; s++) {
+	    int[] ppns = image.sections[s];
+	    for (int i=0; ppns != null && i<ppns.length; i++) {
+		if (UserKernel.getPageReferences(ppns[i]) > 1)
+		    return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Drop the cache's references to an image's frames, leaving the image
+     * with none.
+     *
+     * @return	the number of pages the image held.
+     */
+    private int release(Image image) {
+	int pages = 0;
+	for (int s=0; image.sections != null && s<image.sections.length; s++) {
+	    if (image.sections[s] != null) {
+		UserKernel.freePages(image.sections[s]);
+		pages += image.sections[s].length;
+		image.sections[s] = null;
+	    }
+	}
+	return pages;
+    }
+
+    /**
+     * Return a one-line summary of the cache, for debugging.
+     *
+     * @return	the summary.
+     */
+    public String getStats() {
+	return images.size() + " images, " + numCoffHits + " parsed hits, "
+	    + numLoads + " sections loaded, " + numHits + " shared";
+    }
+
+    /** What is cached of one version of an executable. */
+    private static class Image {
+	Image(int version, int length) {
+	    this.version = version;
+	    this.length = length;
+	}
+
+	int version, length;
+	/** The parsed executable, or <tt>null</tt>. */
+	CachedCoff coff = null;
+	/** The frames of each loaded read-only section, or <tt>null</tt>. */
+	int[][] sections = null;
+    }
+
+    private Lock lock;
+    private int maxImages;
+    /** The images, least recently used first. */
+    private LinkedHashMap<String,Image> images =
+	new LinkedHashMap<String,Image>(16, 0.75f, true);
+    private int numCoffHits = 0, numLoads = 0, numHits = 0;
+}
@@ -0,0 +1,160 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A hash table keyed by <tt>int</tt>, such as the kernel's table of
+ * processes by process ID. Keys are stored unboxed, with open addressing and
+ * linear probing, so a lookup takes constant expected time and allocates
+ * nothing. Removal shifts later entries of the probe run back instead of
+ * leaving a tombstone, so lookups never slow down as keys come and go.
+ *
+ * <p>
+ * An int hash map is not synchronized. Its owner must make sure only one
+ * thread uses it at a time.
+ */
+public class IntHashMap<V> {
+    /**
+     * Allocate a new, empty map.
+     */
+    public IntHashMap() {
+	keys = new int[initialCapacity];
+	values = new Object[initialCapacity];
+    }
+
+    /**
+     * Return the value stored under a key.
+     *
+     * @param	key	the key.
+     * @return	the value, or <tt>null</tt> if the key is not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+	for (int i=slot(key); values[i] != null; i=(i+1) & mask()) {
+	    if (keys[i] == key)
+		return (V) values[i];
+	}
+	return null;
+    }
+
+    /**
+     * Store a value under a key, replacing any value already stored there.
+     *
+     * @param	key	the key.
+     * @param	value	the value. Must not be <tt>null</tt>.
+     * @return	the value previously stored under <i>key</i>, or <tt>null</tt>.
+     */
+    public V put(int key, V value) {
+	Lib.assertTrue(value != null);
+
+	V previous = remove(key);
+
+	if ((size+1)*4 > values.length*3)
+	    grow();
+
+	insert(key, value);
+	size++;
+	return previous;
+    }
+
+    /**
+     * Remove a key from the map.
+     *
+     * @param	key	the key.
+     * @return	the value that was stored under <i>key</i>, or <tt>null</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+	int i = slot(key);
+	while (values[i] != null && keys[i] != key)
+	    i = (i+1) & mask();
+
+	V value = (V) values[i];
+	if (value == null)
+	    return null;
+
+	// move back any later entry whose home slot is at or before the hole
+	int hole = i;
+	for (i=(i+1) & mask(); values[i] != null; i=(i+1) & mask()) {
+	    if (((i - slot(keys[i])) & mask()) >= ((i - hole) & mask())) {
+		keys[hole] = keys[i];
+		values[hole] = values[i];
+		hole = i;
+	    }
+	}
+	values[hole] = null;
+
+	size--;
+	return value;
+    }
+
+    /**
+     * Return the number of keys in the map.
+     *
+     * @return	the number of keys.
+     */
+    public int size() {
+	return size;
+    }
+
+    private int slot(int key) {
+	// Fibonacci hashing spreads consecutive keys apart
+	return (key * 0x9E3779B9) >>> (32 - shift);
+    }
+
+    private int mask() {
+	return values.length - 1;
+    }
+
+    private void insert(int key, Object value) {
+	int i = slot(key);
+	while (values[i] != null)
+	    i = (i+1) & mask();
+
+	keys[i] = key;
+	values[i] = value;
+    }
+
+    private void grow() {
+	int[] oldKeys = keys;
+	Object[] oldValues = values;
+
+	keys = new int[oldKeys.length*2];
+	values = new Object[oldValues.length*2];
+	shift++;
+
+	for (int i=0; i<oldValues.length; i++) {
+	    if (oldValues[i] != null)
+		insert(oldKeys[i], oldValues[i]);
+	}
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	IntHashMap<Integer> map = new IntHashMap<Integer>();
+
+	// enough keys to grow the table a few times
+	for (int key=0; key<200; key++)
+	    Lib.assertTrue(map.put(key*3, key) == null);
+	Lib.assertTrue(map.size() == 200 && map.put(3, -1) == 1);
+
+	// removing from the middle of probe runs keeps the rest reachable
+	for (int key=0; key<200; key+=2)
+	    Lib.assertTrue(map.remove(key*3) != null);
+	Lib.assertTrue(map.size() == 100 && map.get(0) == null);
+	for (int key=1; key<200; key+=2)
+	    Lib.assertTrue(map.get(key*3) == ((key == 1) ? -1 : key));
+
+	Lib.assertTrue(map.get(-5) == null && map.remove(-5) == null);
+    }
+
+    private static final int initialCapacity = 16;
+
+    private int[] keys;
+    private Object[] values;
+    /** log2 of the capacity. */
+    private int shift = 4;
+    private int size = 0;
+}
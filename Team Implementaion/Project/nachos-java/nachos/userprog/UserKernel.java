@@ -3,7 +3,8 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 //import nachos.userprog.*;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * A kernel that can support multiple user processes.
@@ -28,13 +29,34 @@ public class UserKernel extends ThreadedKernel {
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
 	    });
-	    //task 3
-	for(int i=0;i<Machine.processor().getNumPhysPages();i++)//initialize the global page table
-	{
-		GlobalPageTable.add(i,-1);//-1 is for free pages
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	pageRefs = new int[numPhysPages];
+	buddy = new BuddyAllocator(numPhysPages);
+	PageLock=new Lock("UserKernel.PageLock");//create the lock for accessing the global page table
+
+	zeroPool = new int[Config.getInteger("UserKernel.zeroPoolPages", 16)];
+	zeroerSemaphore = new Semaphore(0);
+	new KThread(new Runnable() {
+		public void run() { zeroPages(); }
+	    }).setName("page zeroer").fork();
+
+	KThread.setIdleTask(new Runnable() {
+		public void run() { wakeZeroer(); }
+	    });
+
+	maxOpenFiles = Config.getInteger("UserKernel.maxOpenFiles", 256);
+	fileTableLock = new Lock("UserKernel.fileTableLock");
+	processLock = new Lock("UserKernel.processLock");
+	imageCache = new ImageCache();
+
+	ioQueue = new SynchList();
+	int numIOThreads = Config.getInteger("UserKernel.ioThreads", 4);
+	for (int i=0; i<numIOThreads; i++) {
+	    new KThread(new Runnable() {
+		    public void run() { runIORequests(); }
+		}).setName("io thread " + i).fork();
 	}
-	PageLock=new Lock();//create the lock for accessing the global page table
-	nextFreePage=0;//set the first free page to the index of the first page in the global page table
     }
 
     /**
@@ -43,6 +65,12 @@ public class UserKernel extends ThreadedKernel {
     public void selfTest() {
 	super.selfTest();
 
+	pageSelfTest();
+	futexSelfTest();
+	DescriptorTable.selfTest();
+	IntHashMap.selfTest();
+	UserProcess.selfTest();
+
 	System.out.println("Testing the console device. Typed characters");
 	System.out.println("will be echoed until q is typed.");
 
@@ -57,6 +85,90 @@ public class UserKernel extends ThreadedKernel {
 	System.out.println("");
     }
 
+    /**
+     * Test the physical page allocator.
+     */
+    private static void pageSelfTest() {
+	BuddyAllocator.selfTest();
+
+	int free = numFreePages();
+
+	int[] all = allocatePages(free);
+	Lib.assertTrue(all != null && numFreePages() == 0);
+	Lib.assertTrue(allocatePages(1) == null && addPage() == -1);
+
+	freePages(all);
+	Lib.assertTrue(numFreePages() == free);
+
+	// a shared page is only freed with its last reference
+	int shared = addPage();
+	referencePages(new int[] { shared });
+	Lib.assertTrue(getPageReferences(shared) == 2);
+	removePage(shared);
+	Lib.assertTrue(getPageReferences(shared) == 1
+		       && numFreePages() == free-1);
+	removePage(shared);
+	Lib.assertTrue(numFreePages() == free);
+
+	// a multi-page request is contiguous when memory is not fragmented
+	int[] ppns = allocatePages(5);
+	for (int i=1; i<ppns.length; i++)
+	    Lib.assertTrue(ppns[i] == ppns[0]+i);
+	freePages(ppns);
+
+	int base = allocateContiguous(3);
+	Lib.assertTrue(base != -1);
+	freeContiguous(base, 3);
+	Lib.assertTrue(numFreePages() == free);
+
+	// dirty a page, free it, and let the zeroer refill the pool
+	int ppn = addPage();
+	byte[] memory = Machine.processor().getMemory();
+	Arrays.fill(memory, ppn*Processor.pageSize,
+		    (ppn+1)*Processor.pageSize, (byte) 1);
+	removePage(ppn);
+	ThreadedKernel.alarm.waitUntil(1000);
+	Lib.assertTrue(zeroPoolCount > 0);
+
+	ppns = allocateZeroedPages(zeroPoolCount + 1);
+	for (int i=0; i<ppns.length; i++) {
+	    for (int j=0; j<Processor.pageSize; j++)
+		Lib.assertTrue(memory[ppns[i]*Processor.pageSize + j] == 0);
+	}
+	freePages(ppns);
+	Lib.assertTrue(numFreePages() == free);
+    }
+
+    /**
+     * Test futex wait and wake on a word of physical memory, before any user
+     * process is using it.
+     */
+    private static void futexSelfTest() {
+	final byte[] memory = Machine.processor().getMemory();
+	final int paddr = 0;
+	Lib.bytesFromInt(memory, paddr, 0);
+
+	// a stale expected value must not block
+	Lib.assertTrue(futexWait(paddr, 1) == -1);
+	Lib.assertTrue(futexWake(paddr, 1) == 0);
+
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(futexWait(paddr, 0) == 0);
+		    Lib.assertTrue(Lib.bytesToInt(memory, paddr) == 1);
+		}
+	    });
+	waiter.setName("futex waiter").fork();
+	KThread.yield();
+
+	Lib.bytesFromInt(memory, paddr, 1);
+	Lib.assertTrue(futexWake(paddr, 5) == 1);
+	waiter.join();
+
+	Lib.assertTrue(futexQueues.isEmpty());
+	Lib.bytesFromInt(memory, paddr, 0);
+    }
+
     /**
      * Returns the current process.
      *
@@ -114,56 +226,609 @@ public class UserKernel extends ThreadedKernel {
     public void terminate() {
 	super.terminate();
     }
-   //task 3
-    //allocates a page and returns the physical page number for the process
-   public static int addPage()
-    {
-    	PageLock.acquire();
-    	int ppn = nextFreePage;
-	GlobalPageTable.set(nextFreePage,ppn);
-    	//GlobalPageTable.remove(nextFreePage);
-		//GlobalPageTable.add(nextFreePage,ppn);
-
-		for(int j=0;j<GlobalPageTable.size();j++)//increase the next free page index to the next available page
-		{
-			if(GlobalPageTable.get(j)==-1)//stop at the first free page
-			{
-				UserKernel.nextFreePage=j;
-				break;
-			}
-		}
-			UserKernel.PageLock.release();// release the lock
-			return ppn;
-
-    	
-    }
-    /*public static int getFreePage()
-    {
-    	
-    	return nextFreePage;
-    }*/
-    public static void removePage(int i)
-    {
-    	PageLock.acquire();//get the lock
-    	//GlobalPageTable.remove(i);// remove page at given index
-		//GlobalPageTable.add(i,-1);//add free page at given index
-	GlobalPageTable.set(i, -1);
-		for(int j=0;j<GlobalPageTable.size();j++)
-		{
-			if(GlobalPageTable.get(j)==-1)//stop at the first free page
-			{
-				nextFreePage=j;
-				break;
-			}
-		}
-		PageLock.release();//release the lock
+    /**
+     * Allocate <i>count</i> free physical pages. Either all of them are
+     * allocated, or none are. The pages are physically contiguous if there
+     * is a free block large enough; otherwise they are gathered one at a
+     * time from wherever pages are free.
+     *
+     * @param	count	the number of pages to allocate.
+     * @return	the physical page numbers of the allocated pages, or
+     *		<tt>null</tt> if fewer than <i>count</i> pages are free.
+     */
+    public static int[] allocatePages(int count) {
+	Lib.assertTrue(count >= 0);
+
+	PageLock.acquire();
+
+	if (count > buddy.getNumFreePages() + zeroPoolCount) {
+	    PageLock.release();
+	    return null;
+	}
+	// memory is tight, so the pool gives its pages back
+	if (count > buddy.getNumFreePages())
+	    drainZeroPool();
+
+	int[] ppns = new int[count];
+	int base = (count > 1) ? buddy.allocateRange(count) : -1;
+	for (int i=0; i<count; i++) {
+	    ppns[i] = (base != -1) ? base+i : buddy.allocate(0);
+	    markUsed(ppns[i], true);
+	}
+
+	PageLock.release();
+	return ppns;
+    }
+
+    /**
+     * Allocate <i>count</i> free physical pages that are filled with zeros.
+     * Pages are taken from the pool that the page zeroer fills while the CPU
+     * is idle; only when the pool runs dry are pages zeroed here, on the
+     * caller's time.
+     *
+     * @param	count	the number of pages to allocate.
+     * @return	the physical page numbers of the allocated pages, or
+     *		<tt>null</tt> if fewer than <i>count</i> pages are free.
+     */
+    public static int[] allocateZeroedPages(int count) {
+	Lib.assertTrue(count >= 0);
+
+	PageLock.acquire();
+
+	if (count > buddy.getNumFreePages() + zeroPoolCount) {
+	    PageLock.release();
+	    return null;
+	}
+
+	int[] ppns = new int[count];
+	int fromPool = Math.min(count, zeroPoolCount);
+	for (int i=0; i<fromPool; i++)
+	    ppns[i] = zeroPool[--zeroPoolCount];
+	for (int i=fromPool; i<count; i++) {
+	    ppns[i] = buddy.allocate(0);
+	    markUsed(ppns[i], true);
+	    zeroPage(ppns[i]);
+	}
+
+	zeroPoolHits += fromPool;
+	zeroPoolMisses += count - fromPool;
+
+	PageLock.release();
+	return ppns;
+    }
+
+    /**
+     * Drop a reference to each of the specified physical pages. A page
+     * returns to the free pool when its last reference is dropped, and free
+     * neighbours are merged back into larger contiguous blocks.
+     *
+     * @param	ppns	the physical page numbers of the pages to free.
+     */
+    public static void freePages(int[] ppns) {
+	PageLock.acquire();
+
+	for (int i=0; i<ppns.length; i++) {
+	    if (pageRefs[ppns[i]] > 1) {
+		pageRefs[ppns[i]]--;
+		continue;
+	    }
+	    markUsed(ppns[i], false);
+	    buddy.free(ppns[i], 0);
+	}
+
+	PageLock.release();
+    }
+
+    /**
+     * Add a reference to each of the specified allocated pages, so they can
+     * be shared by another page table. Each reference is dropped with
+     * <tt>freePages()</tt>.
+     *
+     * @param	ppns	the physical page numbers of the pages to share.
+     */
+    public static void referencePages(int[] ppns) {
+	PageLock.acquire();
+
+	for (int i=0; i<ppns.length; i++) {
+	    Lib.assertTrue(pageRefs[ppns[i]] > 0);
+	    pageRefs[ppns[i]]++;
+	}
+
+	PageLock.release();
+    }
+
+    /**
+     * Return the number of references to an allocated physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the number of page tables the page is mapped in.
+     */
+    public static int getPageReferences(int ppn) {
+	PageLock.acquire();
+	int refs = pageRefs[ppn];
+	PageLock.release();
+
+	return refs;
+    }
+
+    /**
+     * Allocate <i>count</i> physically contiguous pages, for kernel buffers
+     * that are accessed directly in <tt>Processor.getMemory()</tt>. The
+     * region starts at byte <tt>base*Processor.pageSize</tt> of memory.
+     *
+     * @param	count	the number of pages to allocate. Must be positive.
+     * @return	the first physical page of the region, or -1 if no free
+     *		region is large enough.
+     */
+    public static int allocateContiguous(int count) {
+	PageLock.acquire();
+
+	int base = buddy.allocateRange(count);
+	for (int i=0; base != -1 && i<count; i++)
+	    markUsed(base+i, true);
+
+	PageLock.release();
+	return base;
+    }
+
+    /**
+     * Free a region allocated by <tt>allocateContiguous()</tt>.
+     *
+     * @param	base	the first physical page of the region.
+     * @param	count	the number of pages in the region.
+     */
+    public static void freeContiguous(int base, int count) {
+	PageLock.acquire();
+
+	for (int i=0; i<count; i++)
+	    markUsed(base+i, false);
+	buddy.freeRange(base, count);
+
+	PageLock.release();
+    }
+
+    /**
+     * Wake the page zeroer if the zero pool needs refilling. Called by the
+     * idle thread, so it must not block.
+     */
+    private static void wakeZeroer() {
+	if (!zeroerAwake && zeroPoolCount < zeroPool.length
+	    && buddy.getNumFreePages() > 0) {
+	    zeroerAwake = true;
+	    zeroerSemaphore.V();
+	}
+    }
+
+    /**
+     * The page zeroer. Each time the idle thread wakes it, move one free
+     * page into the zero pool and go back to sleep, so it never delays other
+     * threads by more than one page's worth of work.
+     */
+    private static void zeroPages() {
+	while (true) {
+	    zeroerSemaphore.P();
+
+	    PageLock.acquire();
+	    if (zeroPoolCount < zeroPool.length
+		&& buddy.getNumFreePages() > 0) {
+		int ppn = buddy.allocate(0);
+		markUsed(ppn, true);
+		zeroPage(ppn);
+		zeroPool[zeroPoolCount++] = ppn;
+	    }
+	    PageLock.release();
+
+	    zeroerAwake = false;
+	}
+    }
+
+    /**
+     * Give every page in the zero pool back to the buddy allocator. Must be
+     * called with the page lock held.
+     */
+    private static void drainZeroPool() {
+	while (zeroPoolCount > 0) {
+	    int ppn = zeroPool[--zeroPoolCount];
+	    markUsed(ppn, false);
+	    buddy.free(ppn, 0);
+	}
+    }
+
+    private static void zeroPage(int ppn) {
+	int paddr = ppn*Processor.pageSize;
+	Arrays.fill(Machine.processor().getMemory(), paddr,
+		    paddr+Processor.pageSize, (byte) 0);
+    }
+
+    /**
+     * Mark a free physical page allocated, with one reference, or mark a
+     * page with one reference free again.
+     */
+    private static void markUsed(int ppn, boolean used) {
+	Lib.assertTrue(pageRefs[ppn] == (used ? 0 : 1));
+
+	pageRefs[ppn] = used ? 1 : 0;
+    }
+
+    /**
+     * Allocate a single physical page.
+     *
+     * @return	the physical page number, or -1 if no page is free.
+     */
+    public static int addPage() {
+	int[] ppns = allocatePages(1);
+	return (ppns != null) ? ppns[0] : -1;
+    }
+
+    /**
+     * Drop a reference to a single physical page allocated by
+     * <tt>addPage()</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void removePage(int ppn) {
+	freePages(new int[] { ppn });
     }
+
+    /**
+     * Return the number of physical pages that are not allocated.
+     *
+     * @return	the number of free physical pages.
+     */
+    public static int numFreePages() {
+	return buddy.getNumFreePages() + zeroPoolCount;
+    }
+
+    /**
+     * Return a summary of the physical page allocator's free blocks and
+     * fragmentation.
+     *
+     * @return	the allocator statistics.
+     */
+    public static String pageStats() {
+	PageLock.acquire();
+	String stats = buddy.getStats() + ", zero pool " + zeroPoolCount
+	    + "/" + zeroPool.length + " (" + zeroPoolHits + " hits, "
+	    + zeroPoolMisses + " misses)";
+	PageLock.release();
+
+	return stats;
+    }
+
+    /**
+     * Give a new process a process ID, and enter it in the process table.
+     * IDs are handed out in increasing order, skipping any that are still
+     * in the table after the counter wraps around.
+     *
+     * @param	process	the process.
+     * @return	the process's ID.
+     */
+    public static int registerProcess(UserProcess process) {
+	processLock.acquire();
+
+	int pid;
+	do {
+	    pid = nextPid;
+	    nextPid = (nextPid+1) & Integer.MAX_VALUE;
+	} while (processTable.get(pid) != null);
+	processTable.put(pid, process);
+
+	processLock.release();
+	return pid;
+    }
+
+    /**
+     * Take a process that never ran out of the process table, and hand its
+     * process ID out again if it was the last one given.
+     *
+     * @param	pid	the process's ID.
+     */
+    public static void unregisterProcess(int pid) {
+	processLock.acquire();
+
+	processTable.remove(pid);
+	if (((pid+1) & Integer.MAX_VALUE) == nextPid)
+	    nextPid = pid;
+
+	processLock.release();
+    }
+
+    /**
+     * Open a file on disk for a user process, and enter it in the kernel's
+     * table of open files with one reference. Fails if the table already
+     * holds <tt>UserKernel.maxOpenFiles</tt> files. (The stub file system
+     * has its own, lower limit on how many disk files can be open.)
+     *
+     * @param	name	the name of the file.
+     * @param	create	<tt>true</tt> to create the file, or empty it if it
+     *			exists.
+     * @return	the open file, or <tt>null</tt> on error.
+     */
+    public static OpenFile openFile(String name, boolean create) {
+	fileTableLock.acquire();
+
+	OpenFile file = null;
+	if (openFiles.size() < maxOpenFiles)
+	    file = ThreadedKernel.fileSystem.open(name, create);
+	if (file != null)
+	    openFiles.put(file, 1);
+	// creat() empties the file
+	if (file != null && create)
+	    bumpVersion(name);
+
+	fileTableLock.release();
+	return file;
+    }
+
+    /**
+     * Return how many times a file has been modified by user processes since
+     * the kernel started. Two equal versions of a file mean its contents are
+     * the same, as far as the kernel can tell.
+     *
+     * @param	name	the name of the file.
+     * @return	the file's modification version.
+     */
+    public static int getFileVersion(String name) {
+	fileTableLock.acquire();
+	Integer version = fileVersions.get(name);
+	fileTableLock.release();
+
+	return (version != null) ? version : 0;
+    }
+
+    /**
+     * Record that a file has been written to, truncated or removed. Streams
+     * have no contents to keep track of, and are ignored.
+     *
+     * @param	file	the file.
+     */
+    public static void fileModified(OpenFile file) {
+	if (file.getFileSystem() == null)
+	    return;
+
+	fileTableLock.acquire();
+	bumpVersion(file.getName());
+	fileTableLock.release();
+    }
+
+    /**
+     * Record that the file with the specified name has been removed.
+     *
+     * @param	name	the name of the file.
+     */
+    public static void fileRemoved(String name) {
+	fileTableLock.acquire();
+	bumpVersion(name);
+	fileTableLock.release();
+
+	imageCache.invalidate(name);
+    }
+
+    private static void bumpVersion(String name) {
+	Integer version = fileVersions.get(name);
+	fileVersions.put(name, (version != null) ? version+1 : 1);
+    }
+
+    /**
+     * Add a reference to an open file, for another descriptor (or another
+     * process) that refers to it. A file that is not in the table yet, such
+     * as a console stream, is entered with one reference; this never fails,
+     * so the limit only applies to <tt>openFile()</tt>.
+     *
+     * @param	file	the file.
+     */
+    public static void referenceFile(OpenFile file) {
+	fileTableLock.acquire();
+
+	Integer refs = openFiles.get(file);
+	openFiles.put(file, (refs == null) ? 1 : refs+1);
+
+	fileTableLock.release();
+    }
+
+    /**
+     * Drop a reference to an open file. The file is closed when the last
+     * reference is dropped.
+     *
+     * @param	file	the file.
+     */
+    public static void releaseFile(OpenFile file) {
+	fileTableLock.acquire();
+
+	Lib.assertTrue(openFiles.containsKey(file));
+	int refs = openFiles.get(file);
+	if (refs > 1)
+	    openFiles.put(file, refs-1);
+	else
+	    openFiles.remove(file);
+
+	fileTableLock.release();
+
+	if (refs == 1)
+	    file.close();
+    }
+
+    /**
+     * Queue an asynchronous transfer for the kernel's I/O threads.
+     *
+     * @param	request	the transfer.
+     */
+    public static void submitIO(AsyncIORequest request) {
+	ioQueue.add(request);
+    }
+
+    /**
+     * The body of an I/O thread: carry out queued transfers, one at a time,
+     * forever.
+     */
+    private static void runIORequests() {
+	while (true)
+	    ((AsyncIORequest) ioQueue.removeFirst()).run();
+    }
+
+    /**
+     * Borrow a page-sized scratch buffer, for a syscall that has to stage
+     * user data in the kernel (for example, to decode a string). Such a
+     * syscall works through its data one buffer at a time, so it never holds
+     * more host memory than this, however large the user's request is.
+     * Buffers are recycled through a small pool.
+     *
+     * @return	a buffer of <tt>Processor.pageSize</tt> bytes.
+     */
+    public static byte[] borrowBuffer() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	byte[] buffer = (numPooledBuffers > 0)
+	    ? bufferPool[--numPooledBuffers] : new byte[Processor.pageSize];
+
+	Machine.interrupt().restore(intStatus);
+	return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from <tt>borrowBuffer()</tt>.
+     *
+     * @param	buffer	the buffer. Must not be used again by the caller.
+     */
+    public static void returnBuffer(byte[] buffer) {
+	Lib.assertTrue(buffer.length == Processor.pageSize);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (numPooledBuffers < bufferPool.length)
+	    bufferPool[numPooledBuffers++] = buffer;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically check that the word at physical address <i>paddr</i> still
+     * holds <i>expected</i>, and if so, sleep until another thread calls
+     * <tt>futexWake()</tt> on the same address. Because the check and the
+     * sleep happen with interrupts disabled, a wake between a user program's
+     * test of the word and its call to wait cannot be lost.
+     *
+     * <p>
+     * Waiters are keyed by physical address, so processes sharing a frame
+     * share the queue no matter where the frame is mapped in each of them.
+     *
+     * @param	paddr		the word-aligned physical address to wait on.
+     * @param	expected	the value the word must hold for the caller to
+     *				sleep.
+     * @return	0 after being woken, or -1 if the word did not hold
+     *		<i>expected</i>.
+     */
+    public static int futexWait(int paddr, int expected) {
+	byte[] memory = Machine.processor().getMemory();
+	Lib.assertTrue(paddr >= 0 && paddr+4 <= memory.length && paddr%4 == 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (Lib.bytesToInt(memory, paddr) != expected) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	FutexQueue futex = futexQueues.get(paddr);
+	if (futex == null) {
+	    futex = new FutexQueue();
+	    futexQueues.put(paddr, futex);
+	}
+	futex.waiters++;
+	futex.queue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+	return 0;
+    }
+
+    /**
+     * Wake up to <i>count</i> threads waiting in <tt>futexWait()</tt> on
+     * physical address <i>paddr</i>.
+     *
+     * @param	paddr	the word-aligned physical address to wake.
+     * @param	count	the maximum number of threads to wake.
+     * @return	the number of threads woken.
+     */
+    public static int futexWake(int paddr, int count) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int woken = 0;
+	FutexQueue futex = futexQueues.get(paddr);
+	if (futex != null) {
+	    while (woken < count && futex.waiters > 0) {
+		futex.queue.nextThread().ready();
+		futex.waiters--;
+		woken++;
+	    }
+	    // queues only live while someone is waiting on them
+	    if (futex.waiters == 0)
+		futexQueues.remove(paddr);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return woken;
+    }
+
+    /**
+     * The threads waiting on one physical address.
+     */
+    private static class FutexQueue {
+	ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+	int waiters = 0;
+    }
+
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
-    private static LinkedList<Integer> GlobalPageTable=new LinkedList<Integer>();//Global page table. free page=-1  in use page =1
-    private static int nextFreePage;//index of next free page.
+    /** The read-only sections of executables, shared between processes. */
+    public static ImageCache imageCache;
+
+    /**
+     * For each physical page, the number of references to it: 0 while the
+     * page is free, and otherwise the number of page tables it is mapped in
+     * (or 1 for a page owned by the kernel).
+     */
+    private static int[] pageRefs;
+    /** Hands out free physical pages, in contiguous blocks if possible. */
+    private static BuddyAllocator buddy;
+    /** Free pages that have already been zeroed, ready to hand out. */
+    private static int[] zeroPool;
+    private static int zeroPoolCount = 0;
+    private static long zeroPoolHits = 0, zeroPoolMisses = 0;
+    private static Semaphore zeroerSemaphore;
+    private static boolean zeroerAwake = false;
     private static Lock PageLock;//lock to access global page table
+    /**
+     * Every process that has not been reaped yet, by process ID. Guarded by
+     * <tt>processLock</tt>, which also guards the parent and child links
+     * between processes.
+     */
+    static IntHashMap<UserProcess> processTable = new IntHashMap<UserProcess>();
+    static Lock processLock;
+    private static int nextPid = 0;
+    /**
+     * The number of processes running a program, forked or loaded, that have
+     * not exited yet. The machine halts when it drops to zero. Guarded by
+     * <tt>processLock</tt>.
+     */
+    static int numRunningProcesses = 0;
+    /** Every file open in a user process, with its reference count. */
+    private static HashMap<OpenFile,Integer> openFiles =
+	new HashMap<OpenFile,Integer>();
+    private static int maxOpenFiles;
+    /** How many times each file has been modified; see getFileVersion(). */
+    private static HashMap<String,Integer> fileVersions =
+	new HashMap<String,Integer>();
+    private static Lock fileTableLock;
+    /** Asynchronous transfers waiting for an I/O thread. */
+    private static SynchList ioQueue;
+    /** Scratch buffers for syscalls, ready to be borrowed. */
+    private static byte[][] bufferPool = new byte[8][];
+    private static int numPooledBuffers = 0;
+    /** Futex wait queues, keyed by physical address. */
+    private static HashMap<Integer,FutexQueue> futexQueues =
+	new HashMap<Integer,FutexQueue>();
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
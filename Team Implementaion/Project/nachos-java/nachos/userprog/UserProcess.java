@@ -5,7 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -27,30 +27,24 @@ public class UserProcess {
 	int numPhysPages = Machine.processor().getNumPhysPages();
 	pageTable = new TranslationEntry[numPhysPages];
 	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
-	    
-	    
-	    JoinLock=new Lock();
-		ExitLock = new Lock();
-	    
-	    descriptors=new OpenFile[16];
-	    descriptors[0]=stdin;
-		descriptors[1]=stdout;
-		
-		boolean inStatus=Machine.interrupt().disable();
-		counterPIDLock=new Lock();
-		counterPIDLock.acquire();
-		ProcessID=counterPID++;
-		counterPIDLock.release();
-		stdin = UserKernel.console.openForReading();
-		stdout = UserKernel.console.openForWriting();
-		
-		Machine.interrupt().restore(inStatus);
-		parentProcess=null;
-		
-		
-		ChildPro=new ArrayList<UserProcess>();
-
+	    pageTable[i] = new TranslationEntry(i,i, false,false,false,false);
+	copyOnWrite = new boolean[numPhysPages];
+
+	Lib.assertTrue(maxDescriptors > 0
+		       && maxDescriptors <= DescriptorTable.maxLimit,
+		       "UserProcess.maxDescriptors must be between 1 and "
+		       + DescriptorTable.maxLimit);
+	descriptors = new DescriptorTable(maxDescriptors);
+
+	stdin = UserKernel.console.openForReading();
+	stdout = UserKernel.console.openForWriting();
+	descriptors.add(stdin);
+	descriptors.add(stdout);
+	UserKernel.referenceFile(stdin);
+	UserKernel.referenceFile(stdout);
+
+	childExited = new Condition2(UserKernel.processLock);
+	pid = UserKernel.registerProcess(this);
     }
     
     /**
@@ -75,8 +69,13 @@ public class UserProcess {
     public boolean execute(String name, String[] args) {
 	if (!load(name, args))
 	    return false;
+
+	UserKernel.processLock.acquire();
+	UserKernel.numRunningProcesses++;
+	UserKernel.processLock.release();
 	
-	new UThread(this).setName(name).fork();
+	thread = new UThread(this);
+	thread.setName(name).fork();
 
 	return true;
     }
@@ -113,16 +112,37 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
-
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	// stream the string through one pooled chunk at a time, so a long
+	// maximum costs nothing unless the string really is that long
+	byte[] chunk = UserKernel.borrowBuffer();
+	String string = null;
+	StringBuffer prefix = null;
+
+	for (int done=0; done<=maxLength; ) {
+	    int amount = Math.min(chunk.length, maxLength+1 - done);
+	    int bytesRead = readVirtualMemory(vaddr+done, chunk, 0, amount);
+
+	    int length = 0;
+	    while (length < bytesRead && chunk[length] != 0)
+		length++;
+
+	    if (length < bytesRead) {
+		string = new String(chunk, 0, length);
+		if (prefix != null)
+		    string = prefix.append(string).toString();
+		break;
+	    }
+	    if (bytesRead < amount)
+		break;
 
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
+	    if (prefix == null)
+		prefix = new StringBuffer();
+	    prefix.append(new String(chunk, 0, bytesRead));
+	    done += bytesRead;
 	}
 
-	return null;
+	UserKernel.returnBuffer(chunk);
+	return string;
     }
 
     /**
@@ -153,30 +173,9 @@ public class UserProcess {
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset,
 				 int length) {
-Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-	byte[] memory = Machine.processor().getMemory();
-	
-	//get the virtual page number, virtual offset, and the physical page number
-	int VPN=Machine.processor().pageFromAddress(vaddr);
-	//int VPN=vaddr/ pageSize;
-    int VOff= Machine.processor().offsetFromAddress(vaddr);
-	//int VOff=vaddr %pageSize;
-	pageTable[VPN].used=true;
-	int phyAddr=pageTable[VPN].ppn*pageSize+VOff;
-	if (phyAddr < 0 || phyAddr >= memory.length)
-	{
-		return 0;
-	}
-	if (pageTable[VPN].valid==false)
-	{
-	    return 0;
-	}
-
-	int amount = Math.min(length, memory.length-phyAddr);
-	System.arraycopy(memory, phyAddr, data, offset, amount);
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	return amount;
+	return copyVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -208,30 +207,294 @@ Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,
 				  int length) {
-Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
-
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
+	return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Transfer data from a file or stream straight into this process's
+     * virtual memory, without an intermediate buffer: the file is read
+     * directly into each run of physically contiguous frames backing the
+     * buffer. Stops early if the file returns fewer bytes than asked for.
+     *
+     * @param	file	the file to read from.
+     * @param	vaddr	the first byte of virtual memory to fill.
+     * @param	length	the number of bytes to read.
+     * @return	the number of bytes transferred, or -1 if the file reported
+     *		an error before anything was transferred.
+     */
+    public int readFromFile(final OpenFile file, int vaddr, int length) {
+	Lib.assertTrue(length >= 0);
+
+	return walkVirtualMemory(vaddr, length, true, new MemoryRun() {
+		public int transfer(byte[] memory, int paddr, int done,
+				    int amount) {
+		    return file.read(memory, paddr, amount);
+		}
+	    });
+    }
+
+    /**
+     * Transfer data from this process's virtual memory straight to a file or
+     * stream, without an intermediate buffer: each run of physically
+     * contiguous frames backing the buffer is written to the file directly.
+     * Stops early if the file accepts fewer bytes than asked for.
+     *
+     * @param	file	the file to write to.
+     * @param	vaddr	the first byte of virtual memory to write out.
+     * @param	length	the number of bytes to write.
+     * @return	the number of bytes transferred, or -1 if the file reported
+     *		an error before anything was transferred.
+     */
+    public int writeToFile(final OpenFile file, int vaddr, int length) {
+	Lib.assertTrue(length >= 0);
+
+	UserKernel.fileModified(file);
+	return walkVirtualMemory(vaddr, length, false, new MemoryRun() {
+		public int transfer(byte[] memory, int paddr, int done,
+				    int amount) {
+		    return file.write(memory, paddr, amount);
+		}
+	    });
+    }
+
+    /**
+     * Like <tt>readFromFile(file, vaddr, length)</tt>, but read starting at
+     * the specified position in the file, without using or moving the file
+     * pointer.
+     *
+     * @param	file		the file to read from.
+     * @param	position	the first byte of the file to read, or -1 to
+     *				read the file as a stream.
+     * @param	vaddr		the first byte of virtual memory to fill.
+     * @param	length		the number of bytes to read.
+     * @return	the number of bytes transferred, or -1 if the file reported
+     *		an error before anything was transferred.
+     */
+    public int readFromFile(final OpenFile file, final int position,
+			    int vaddr, int length) {
+	if (position < 0)
+	    return readFromFile(file, vaddr, length);
+
+	Lib.assertTrue(length >= 0);
+
+	return walkVirtualMemory(vaddr, length, true, new MemoryRun() {
+		public int transfer(byte[] memory, int paddr, int done,
+				    int amount) {
+		    return file.read(position+done, memory, paddr, amount);
+		}
+	    });
+    }
+
+    /**
+     * Like <tt>writeToFile(file, vaddr, length)</tt>, but write starting at
+     * the specified position in the file, without using or moving the file
+     * pointer.
+     *
+     * @param	file		the file to write to.
+     * @param	position	the first byte of the file to write, or -1 to
+     *				write the file as a stream.
+     * @param	vaddr		the first byte of virtual memory to write out.
+     * @param	length		the number of bytes to write.
+     * @return	the number of bytes transferred, or -1 if the file reported
+     *		an error before anything was transferred.
+     */
+    public int writeToFile(final OpenFile file, final int position,
+			   int vaddr, int length) {
+	if (position < 0)
+	    return writeToFile(file, vaddr, length);
+
+	Lib.assertTrue(length >= 0);
+
+	UserKernel.fileModified(file);
+	return walkVirtualMemory(vaddr, length, false, new MemoryRun() {
+		public int transfer(byte[] memory, int paddr, int done,
+				    int amount) {
+		    return file.write(position+done, memory, paddr, amount);
+		}
+	    });
+    }
+
+    /**
+     * Copy between this process's virtual memory and an array.
+     *
+     * @param	vaddr	the first byte of virtual memory to copy.
+     * @param	data	the array to copy to or from.
+     * @param	offset	the first byte of the array to copy.
+     * @param	length	the number of bytes to copy.
+     * @param	write	<tt>true</tt> to copy from the array into virtual
+     *			memory, <tt>false</tt> to copy the other way.
+     * @return	the number of bytes successfully copied.
+     */
+    private int copyVirtualMemory(int vaddr, final byte[] data,
+				  final int offset, int length,
+				  final boolean write) {
+	return walkVirtualMemory(vaddr, length, write, new MemoryRun() {
+		public int transfer(byte[] memory, int paddr, int done,
+				    int amount) {
+		    if (write)
+			System.arraycopy(data, offset+done, memory, paddr, amount);
+		    else
+			System.arraycopy(memory, paddr, data, offset+done, amount);
+		    return amount;
+		}
+	    });
+    }
+
+    /**
+     * Moves data to or from one physically contiguous run of main memory.
+     */
+    private interface MemoryRun {
+	/**
+	 * Transfer one run.
+	 *
+	 * @param	memory	main memory.
+	 * @param	paddr	the physical address of the run.
+	 * @param	done	the number of bytes transferred by earlier runs.
+	 * @param	amount	the number of bytes in the run.
+	 * @return	the number of bytes transferred, or -1 on error.
+	 */
+	int transfer(byte[] memory, int paddr, int done, int amount);
+    }
+
+    /**
+     * Walk <i>length</i> bytes of this process's virtual memory one run of
+     * physically contiguous pages at a time, handing each run to
+     * <i>run</i>. As long as the next virtual page maps to the next physical
+     * page, the run is extended, so a transfer costs one call per run rather
+     * than one per page. The used bit (and for writes, the dirty bit) of each
+     * page is set as the page is walked. The walk stops at the first page
+     * that is unmapped, or read-only when writing, and after any run that
+     * moves fewer bytes than it was given.
+     *
+     * @param	vaddr	the first byte of virtual memory.
+     * @param	length	the number of bytes.
+     * @param	write	<tt>true</tt> if virtual memory is being written.
+     * @param	run	moves the data of each run.
+     * @return	the number of bytes transferred, or -1 if the first run
+     *		failed.
+     */
+    private int walkVirtualMemory(int vaddr, int length, boolean write,
+				  MemoryRun run) {
+	if (vaddr < 0)
+	    return 0;
+
 	byte[] memory = Machine.processor().getMemory();
-	
-	int virtPageNum=Machine.processor().pageFromAddress(vaddr);
-	int virtOffset=Machine.processor().offsetFromAddress(vaddr);
-	int phyAddr=pageTable[virtPageNum].ppn*pageSize+virtOffset;
-	//check if the address is valid, the page table entry is valid and not read only. 
-	if (phyAddr < 0 || phyAddr >= memory.length || !pageTable[virtPageNum].valid || pageTable[virtPageNum].readOnly )
-	{
-		return 0;
-	}
-	//set the entry as used and dirty
-	pageTable[virtPageNum].used=true;
-	pageTable[virtPageNum].dirty=true;
-	
+	int done = 0;
 
-	int amount = Math.min(length, memory.length-phyAddr);
-	System.arraycopy(data, offset, memory, phyAddr, amount);
+	while (done < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + done);
+	    if (!touchPage(vpn, write))
+		break;
 
-	return amount;
+	    int pageOffset = Processor.offsetFromAddress(vaddr + done);
+	    int paddr = pageTable[vpn].ppn*pageSize + pageOffset;
+	    int amount = Math.min(length - done, pageSize - pageOffset);
+
+	    // extend the run across physically adjacent pages
+	    while (done + amount < length && touchAdjacentPage(vpn, write)) {
+		vpn++;
+		amount += Math.min(length - done - amount, pageSize);
+	    }
+
+	    int moved = run.transfer(memory, paddr, done, amount);
+	    if (moved < 0)
+		return (done > 0) ? done : -1;
+
+	    done += moved;
+	    if (moved < amount)
+		break;
+	}
+
+	return done;
+    }
+
+    /**
+     * Test whether <i>length</i> bytes of virtual memory starting at
+     * <i>vaddr</i> are all mapped, and writable if <i>write</i> is set.
+     *
+     * @return	<tt>true</tt> if the whole buffer may be accessed.
+     */
+    private boolean isValidBuffer(int vaddr, int length, boolean write) {
+	if (vaddr < 0 || length < 0 || vaddr + length < 0)
+	    return false;
+	if (length == 0)
+	    return true;
+
+	int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+	for (int vpn=Processor.pageFromAddress(vaddr); vpn<=lastVPN; vpn++) {
+	    if (vpn >= numPages || !pageTable[vpn].valid
+		|| (write && pageTable[vpn].readOnly && !copyOnWrite[vpn]))
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * If virtual page <i>vpn</i> may be accessed, mark it used (and dirty,
+     * for a write). A copy-on-write page is copied before it is written.
+     *
+     * @return	<tt>true</tt> if the page is mapped, and writable if
+     *		<i>write</i> is set.
+     */
+    private boolean touchPage(int vpn, boolean write) {
+	if (vpn < 0 || vpn >= numPages || !pageTable[vpn].valid)
+	    return false;
+	if (write && pageTable[vpn].readOnly
+	    && !(copyOnWrite[vpn] && breakCopyOnWrite(vpn)))
+	    return false;
+
+	pageTable[vpn].used = true;
+	if (write)
+	    pageTable[vpn].dirty = true;
+	return true;
+    }
+
+    /**
+     * Touch virtual page <i>vpn</i>+1 if it is accessible and maps to the
+     * physical page right after <i>vpn</i>'s. The page is touched first,
+     * since copying a copy-on-write page moves it.
+     */
+    private boolean touchAdjacentPage(int vpn, boolean write) {
+	return vpn+1 < numPages
+	    && touchPage(vpn+1, write)
+	    && pageTable[vpn+1].ppn == pageTable[vpn].ppn + 1;
+    }
+
+    /**
+     * Give this process its own copy of a copy-on-write page, and make the
+     * page writable. If no other page table maps the frame any more, it is
+     * just made writable, without copying.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>false</tt> if there was no free page for the copy.
+     */
+    private boolean breakCopyOnWrite(int vpn) {
+	memoryLock.acquire();
+
+	TranslationEntry entry = pageTable[vpn];
+	boolean writable = true;
+	if (copyOnWrite[vpn] && UserKernel.getPageReferences(entry.ppn) > 1) {
+	    int ppn = UserKernel.addPage();
+	    if (ppn != -1) {
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, entry.ppn*pageSize,
+				 memory, ppn*pageSize, pageSize);
+		UserKernel.removePage(entry.ppn);
+		entry.ppn = ppn;
+	    }
+	    else {
+		writable = false;
+	    }
+	}
+	if (writable && copyOnWrite[vpn]) {
+	    entry.readOnly = false;
+	    copyOnWrite[vpn] = false;
+	}
+
+	memoryLock.release();
+	return writable;
     }
 
     /**
@@ -253,8 +516,13 @@ Lib.assertTrue(offset >= 0 && length >= 0
 	    return false;
 	}
 
+	executableName = name;
+	executableVersion = UserKernel.getFileVersion(name);
+	executableLength = executable.length();
+
 	try {
-	    coff = new Coff(executable);
+	    coff = UserKernel.imageCache.getCoff(name, executableVersion,
+						 executable);
 	}
 	catch (EOFException e) {
 	    executable.close();
@@ -336,20 +604,92 @@ Lib.assertTrue(offset >= 0 && length >= 0
 	    return false;
 	}
 
-	// load sections
+	// read-only sections are shared with every process running the same
+	// executable, through the image cache
+	int numShared = 0;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (!section.isReadOnly())
+		continue;
+
+	    int[] ppns = UserKernel.imageCache.mapSection(executableName,
+		executableVersion, executableLength, coff, s);
+	    if (ppns == null) {
+		unloadSections();
+		Lib.debug(dbgProcess, "\tinsufficient physical memory");
+		return false;
+	    }
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+		pageTable[vpn].ppn = ppns[i];
+		pageTable[vpn].valid = true;
+		pageTable[vpn].readOnly = true;
+	    }
+	    numShared += section.getLength();
+	}
+
+	// uninitialized sections, the stack and the arguments start out zeroed;
+	// a read-only one is already mapped from the image cache
+	boolean[] zeroed = new boolean[numPages];
+	int numZeroed = 0;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    for (int i=0; !section.isInitialzed() && i<section.getLength(); i++)
+		zeroed[section.getFirstVPN()+i] = true;
+	}
+	for (int vpn=numPages-stackPages-1; vpn<numPages; vpn++)
+	    zeroed[vpn] = true;
+	for (int vpn=0; vpn<numPages; vpn++)
+	    numZeroed += (zeroed[vpn] && !pageTable[vpn].valid) ? 1 : 0;
+
+	// grab every other frame the process needs at once; if memory is
+	// short, drop cached images that no process is running and try again
+	int numLoaded = numPages - numShared - numZeroed;
+	int[] loadedPPNs = null, zeroedPPNs = null;
+	for (int attempt=0; attempt<2 && zeroedPPNs == null; attempt++) {
+	    if (attempt > 0 && UserKernel.imageCache.trim() == 0)
+		break;
+
+	    loadedPPNs = UserKernel.allocatePages(numLoaded);
+	    if (loadedPPNs != null)
+		zeroedPPNs = UserKernel.allocateZeroedPages(numZeroed);
+	    if (loadedPPNs != null && zeroedPPNs == null)
+		UserKernel.freePages(loadedPPNs);
+	}
+	if (zeroedPPNs == null) {
+	    unloadSections();
+	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	    return false;
+	}
+
+	int nextLoaded = 0, nextZeroed = 0;
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid)
+		continue;
+
+	    if (zeroed[vpn])
+		pageTable[vpn].ppn = zeroedPPNs[nextZeroed++];
+	    else
+		pageTable[vpn].ppn = loadedPPNs[nextLoaded++];
+	    pageTable[vpn].valid = true;
+	    pageTable[vpn].readOnly = false;
+	}
+
+	// load the writable sections
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
+	    if (section.isReadOnly())
+		continue;
 	    
 	    Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
 
-	    	    
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
-		
-		pageTable[vpn].ppn=UserKernel.addPage();//set the physical page number to the first free page in the global page table
-		pageTable[vpn].valid=true;// set the page entry to valid
-		pageTable[vpn].readOnly=section.isReadOnly();// set the page entry to read only if the section is read only
-		section.loadPage(i, pageTable[i].ppn);
+
+		// a zeroed page already holds what loadPage() would put there
+		if (!zeroed[vpn])
+		    section.loadPage(i, pageTable[vpn].ppn);
 	    }
 	}
 	
@@ -360,13 +700,26 @@ Lib.assertTrue(offset >= 0 && length >= 0
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	    for(int i=0;i<pageTable.length;i++)
-    	{
-    		if(pageTable[i].valid)//check if the entry is valid
-    		{
-    			UserKernel.removePage(pageTable[i].ppn);
-    		}
+	int[] ppns = new int[numPages];
+	int count = 0;
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid) {
+		ppns[count++] = pageTable[vpn].ppn;
+		pageTable[vpn].valid = false;
 	    }
+	}
+
+	if (count < numPages)
+	    ppns = Arrays.copyOf(ppns, count);
+	UserKernel.freePages(ppns);
+
+	if (coff != null) {
+	    coff.close();
+	    coff = null;
+	}
+
+	// an image this process kept over the cache's limit can go now
+	UserKernel.imageCache.evict();
     }   
 
     /**
@@ -379,6 +732,13 @@ Lib.assertTrue(offset >= 0 && length >= 0
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked child picks up where its parent left off
+	if (forkRegisters != null) {
+	    for (int i=0; i<processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -397,6 +757,7 @@ Lib.assertTrue(offset >= 0 && length >= 0
      */
     private int handleHalt() {
 
+	LockProfile.printReport();
 	Machine.halt();
 	
 	Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -414,24 +775,65 @@ Lib.assertTrue(offset >= 0 && length >= 0
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFutexWait = 13,
+	syscallFutexWake = 14,
+	syscallReadv = 15,
+	syscallWritev = 16,
+	syscallRingEnter = 17,
+	syscallARead = 18,
+	syscallAWrite = 19,
+	syscallAwait = 20,
+	syscallAPoll = 21,
+	syscallDup = 22,
+	syscallDup2 = 23,
+	syscallWaitAny = 24,
+	syscallFork = 25;
 
 private int handleExit(int status){
-	//set exit reach conditons true
-	this.ExitStat = status;
-	Normalexit=true;
+	return terminate(status, true);
+}
+
+    /**
+     * Terminate this process, releasing its memory and files, and leave its
+     * exit status for its parent.
+     *
+     * @param	status		the exit status.
+     * @param	normally	<tt>false</tt> if the process is being killed
+     *				because of an unhandled exception.
+     */
+private int terminate(int status, boolean normally){
+	// I/O threads may still be using our frames
+	for (AsyncIORequest request : asyncRequests.values())
+	    request.await();
+	asyncRequests.clear();
 	//unloading all resources 
 	unloadSections();
 	//close all descriptors
-	for (int i = 2; i < descriptors.length; i++) {
-	    if (descriptors[i] != null)
-	    	handleClose(i);
-	    	//descriptors[i].close();
-	}
-	//remove all elments in the childlist
-	cleanProcess();
-	//kill all processes
-	if(ProcessID==0){
+	for (int i = 0; i < descriptors.size(); i++)
+	    handleClose(i);
+
+	UserKernel.processLock.acquire();
+	exitStatus = status;
+	exitedNormally = normally;
+	disownChildren();
+	if (parent != null) {
+	    // move to the back of the parent's queue of exited children
+	    UserProcess parent = this.parent;
+	    parent.unlinkChild(this);
+	    exited = true;
+	    parent.linkChild(this);
+	    parent.childExited.wakeAll();
+	}
+	else {
+	    exited = true;
+	    UserKernel.processTable.remove(pid);
+	}
+	boolean last = (--UserKernel.numRunningProcesses == 0);
+	UserKernel.processLock.release();
+
+	//the last process to exit halts the machine
+	if (last) {
 		Kernel.kernel.terminate();
 	}else{
 		UThread.finish();
@@ -440,13 +842,72 @@ private int handleExit(int status){
 
 }
 
-    private void cleanProcess(){
- 	int childrenNum=ChildPro.size();
- 	for(int i=0;i<childrenNum;i++){
- 		UserProcess child=ChildPro.remove(ProcessID);
- 		child.parentProcess=null;
- 	}
- }
+    /**
+     * Leave every child of this process without a parent. Children that have
+     * already exited are reaped now, since no one can join them any more;
+     * the others reap themselves when they exit. The caller must hold
+     * <tt>UserKernel.processLock</tt>.
+     */
+    private void disownChildren() {
+	while (firstChild != null)
+	    unlinkChild(firstChild);
+
+	while (firstExited != null) {
+	    UserProcess child = firstExited;
+	    unlinkChild(child);
+	    UserKernel.processTable.remove(child.pid);
+	}
+    }
+
+    /**
+     * Add a process to this process's children. A running child goes on the
+     * front of the list of running children; an exited child goes on the
+     * back of the queue of exited children, so the queue is in the order
+     * the children exited. The caller must hold
+     * <tt>UserKernel.processLock</tt>.
+     */
+    private void linkChild(UserProcess child) {
+	child.parent = this;
+
+	if (!child.exited) {
+	    child.prevSibling = null;
+	    child.nextSibling = firstChild;
+	    if (firstChild != null)
+		firstChild.prevSibling = child;
+	    firstChild = child;
+	}
+	else {
+	    child.nextSibling = null;
+	    child.prevSibling = lastExited;
+	    if (lastExited != null)
+		lastExited.nextSibling = child;
+	    else
+		firstExited = child;
+	    lastExited = child;
+	}
+    }
+
+    /**
+     * Remove a process from this process's children, leaving it without a
+     * parent. The caller must hold <tt>UserKernel.processLock</tt>.
+     */
+    private void unlinkChild(UserProcess child) {
+	Lib.assertTrue(child.parent == this);
+
+	if (child.prevSibling != null)
+	    child.prevSibling.nextSibling = child.nextSibling;
+	else if (child.exited)
+	    firstExited = child.nextSibling;
+	else
+	    firstChild = child.nextSibling;
+
+	if (child.nextSibling != null)
+	    child.nextSibling.prevSibling = child.prevSibling;
+	else if (child.exited)
+	    lastExited = child.prevSibling;
+
+	child.parent = child.nextSibling = child.prevSibling = null;
+    }
 
 	private int handleExec(int a0, int a1, int a2){
 		//exec(char *name, int argc, char **argv)
@@ -454,19 +915,21 @@ private int handleExit(int status){
 		//a1 = argc -> number of arguments to pass to the child process
 		//a2 = argv -> starting virtual address of the null-terminated string
 		String name = readVirtualMemoryString(a0, 256);
-		String[] nameSplit = name.split("\\.");
-		String[] a1Holder = new String[a1];
-		String coffSection = nameSplit[nameSplit.length - 1];
 
-		if( a1 < 0 || name == null || a0 < 0 || !coffSection.toLowerCase().equals("coff"))
+		// check everything before allocating anything sized by argc; the
+		// argv array must fit in the child's argument page anyway
+		if( a1 < 0 || a1 > pageSize/4 || name == null || a0 < 0
+		    || !name.toLowerCase().endsWith(".coff")
+		    || !isValidBuffer(a2, a1*4, false))
 		{
 			Lib.debug(dbgProcess, "Did not pass Error Check");
 			return -1;
 		}
+		String[] a1Holder = new String[a1];
+		byte[] ptr = new byte[4];
 		// iterate through "number of arguements to pass to the child process
 		for(int i = 0; i < a1; i++)
 		{
-			byte[] ptr = new byte[256];
 			int bytePtr;
 			bytePtr = readVirtualMemory(a2 + i*4, ptr);
 			//Check Pointer
@@ -476,310 +939,292 @@ private int handleExit(int status){
 				return -1;
 			}
 			//Checking Arguement
-			if(readVirtualMemoryString(Lib.bytesToInt(ptr, 0), 256) == null)
+			a1Holder[i] = readVirtualMemoryString(Lib.bytesToInt(ptr, 0), 256);
+			if(a1Holder[i] == null)
 			{
 				Lib.debug(dbgProcess, "Wrong Aruement...");
 				return -1;
 			}
-			a1Holder[i] = readVirtualMemoryString(Lib.bytesToInt(ptr, 0), 256);
 
 			
 		}
 
-		UserProcess Child = newUserProcess();
+		UserProcess child = newUserProcess();
 
+		// link the child before it runs, so it can't exit unparented
+		UserKernel.processLock.acquire();
+		linkChild(child);
+		UserKernel.processLock.release();
 
-		if(Child.execute(name, a1Holder)){
-		this.ChildPro.add(Child);
-		Child.parentProcess = this;
-		return Child.ProcessID;
-		}
-		else{
+		if (!child.execute(name, a1Holder)) {
+			UserKernel.processLock.acquire();
+			unlinkChild(child);
+			UserKernel.processTable.remove(child.pid);
+			UserKernel.processLock.release();
+			for (int i = 0; i < child.descriptors.size(); i++)
+			    child.handleClose(i);
 			return -1;
 		}
+		return child.pid;
+	}
 
-		//return Child.ProcessID;
-		}
+    /**
+     * Handle the join() system call. The child is found through the process
+     * table, and reaped once it has exited.
+     */
+    private int handleJoin(int processID, int status) {
+	UserKernel.processLock.acquire();
 
-private int handleJoin(int processID,int status){
-	//if processID and argument are less than 0,which should not happen return -1
-	if(processID < 0||status < 0){
-		return -1;
-	}
-	//create a new Userprocess to hold items in the child arraylish
-	UserProcess temp21=null;
-	int childrenNum=ChildPro.size();
-	//Check the child list for correct child
-	for(int i=0;i<childrenNum;i++){
-		if(ChildPro.get(i).ProcessID==processID){
-			temp21=ChildPro.get(i);
-			break;
-		}
+	UserProcess child = UserKernel.processTable.get(processID);
+	if (child == null || child.parent != this) {
+	    UserKernel.processLock.release();
+	    return -1;
 	}
-	// if we didn't find a child or the parenProcess is a null(meaning it is a parent process)
-	if(temp21==null||temp21.parentProcess ==null){
-		return -1;
-	}
-	//use previous join in project1
-	temp21.thread.join();
-
-	//create a buffer
-		byte[] buffer=new byte[4];
-		Lib.bytesFromInt(buffer, 0, temp21.ExitStat);
-		//do a write in
-		int count=writeVirtualMemory(status,buffer);
-		//if it which handle exit
-		if(count==4 && temp21.Normalexit==true){
-			return 1;
-		}
-		//if not, return a fail
-		else{
-			
-			return 0;
-		}
-	//}
-}
 
-private int handleClose(int a0) {
- 	
- 	//check to see if it is trying to chose a descriptor that is outside the range of the OpenFile 
- 	if(a0 < 0 || a0 > 15) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//check to see if the descriptor that is trying to be read is empty
- 	if(descriptors[a0] == null) {
- 		
- 		return -1;
- 		
- 	}else {
- 	
- 	//close the descriptor that is being used
- 	descriptors[a0].close();
- 	
- 	//make sure to set it to zero so descriptor can be used
- 	descriptors[a0] = null;
- 	
- 	}
- 	
- 	return 0;
- 	
- }
+	while (!child.exited)
+	    childExited.sleep();
 
-private int handleCreate(int a0) {
- 	
- 	//creates a string variable to get the name of the new table being created
- 	String newfilename = readVirtualMemoryString(a0,256);
- 	
- 	//finds an empty file descriptor
- 	int freeDescriptor = findDescriptor();
- 	
- 	//check to see if the the virtual address is empty
- 	if(a0 < 0) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//check to see if there was a problem with getting the table name
- 	if(newfilename == null) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//checks to see if there was a problem with getting an available descriptor
- 	if(freeDescriptor == -1) {
- 		
- 		return -1;
- 		
- 	}else {
- 		
- 		//create the new file descriptor
- 		OpenFile file = ThreadedKernel.fileSystem.open(newfilename, true);
- 		
- 		//check to see if file returned nothing
- 		if(file == null) {
- 			
- 			return -1;
- 			
- 		}else {
- 			
- 			//add the new file descriptor into the available descriptor index
- 			descriptors[freeDescriptor] = file;
- 			return freeDescriptor;
- 			
- 		}
- 		
- 	}
- 	
- }
+	unlinkChild(child);
+	UserKernel.processTable.remove(child.pid);
 
- private int findDescriptor() {
- 	
- 	/*
- 	A small function that loops through
- 	each file Descriptor index to find 
- 	an index that is null
- 	*/
- 	
- 	for(int i = 0; i < descriptors.length; i++) {
- 		
- 		if(descriptors[i] == null){
- 			
- 			return i;
- 			
- 		}
- 		
- 	}
- 	
- 	return -1;
- 	
- }
+	UserKernel.processLock.release();
 
-private int handleOpen(int a0) {
- 	
- 	//creates a string variable to get the name of the new table being created
- 	String newfilename = readVirtualMemoryString(a0,256);
- 	
- 	//finds an empty file descriptor
- 	int freeDescriptor = findDescriptor();
- 	
- 	//check to see if the the virtual address is empty
- 	if(a0 < 0) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//check to see if there was a problem with getting the table name
- 	if(newfilename == null) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//checks to see if there was a problem with getting an available descriptor
- 	if(freeDescriptor == -1) {
- 		
- 		return -1;
- 		
- 	}else {
- 		
- 		//open the new file descriptor
- 		OpenFile file = ThreadedKernel.fileSystem.open(newfilename, false);
- 		
- 		//check to see if file returned nothing
- 		if(file == null) {
- 			
- 			return -1;
- 			
- 		}else {
- 			
- 			//add the new file descriptor into the available descriptor index
- 			descriptors[freeDescriptor] = file;
- 			return freeDescriptor;
- 			
- 		}
- 		
- 	}
- 	
- }
+	byte[] buffer = new byte[4];
+	Lib.bytesFromInt(buffer, 0, child.exitStatus);
+	if (writeVirtualMemory(status, buffer) != 4 || !child.exitedNormally)
+	    return 0;
 
-private int handleRead(int a0, int a1, int a2) {
- 	
- 	//create a byte buffer
- 	byte[] buffer = new byte[a2];
- 	
- 	//check to see if it is trying to chose a descriptor that is outside the range of the OpenFile 
- 	if(a0 < 0 || a0 > 15) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//check to see if the buffer address is empty
- 	if(a2 < 0) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//check to see if the descriptor that is trying to be read is empty
- 	if(descriptors[a0] == null) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//add the descriptor file to a temp
- 	OpenFile readFile = descriptors[a0];
- 	
- 	//get the total amount read
- 	int amountRead = readFile.read(buffer, 0, a2);
- 	
- 	//check to see if there was a problem
- 	if(amountRead == -1) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//get the total read from virtual memory and return it
- 	int totalRead = writeVirtualMemory(a1, buffer, 0, amountRead);
- 	
- 	return totalRead;
+	return 1;
+    }
 
- 	
- }
+    /**
+     * Handle the waitany() system call. Reaps the child that exited first,
+     * without the caller having to name it.
+     *
+     * @param	pidAddr		where to store the child's process ID.
+     * @param	statusAddr	where to store the child's exit status.
+     * @param	flags		<tt>waitNoHang</tt> to return right away if no
+     *				child has exited.
+     * @return	1 if the child exited normally, 0 if it exited because of an
+     *		unhandled exception, <tt>waitRunning</tt> if no child has
+     *		exited and <tt>waitNoHang</tt> was given, or -1 if this
+     *		process has no children.
+     */
+    private int handleWaitAny(int pidAddr, int statusAddr, int flags) {
+	if ((flags & ~waitNoHang) != 0)
+	    return -1;
+	if (!isValidBuffer(pidAddr, 4, true)
+	    || !isValidBuffer(statusAddr, 4, true))
+	    return -1;
+
+	UserKernel.processLock.acquire();
+
+	while (firstExited == null) {
+	    if (firstChild == null || (flags & waitNoHang) != 0) {
+		UserKernel.processLock.release();
+		return (firstChild == null) ? -1 : waitRunning;
+	    }
+	    childExited.sleep();
+	}
 
-private int handleWrite(int a0, int a1, int a2) {
- 	
- 	//create a byte buffer
- 	byte[] buffer = new byte[a2];
- 	
- 	//check to see if it is trying to chose a descriptor that is outside the range of the OpenFile 
- 	if(a0 < 0 || a0 > 15) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//check to see if the buffer address is empty
- 	if(a2 < 0) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//check to see if the descriptor that is trying to be read is empty
- 	if(descriptors[a0] == null) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	//add the descriptor file to a temp
- 	OpenFile readFile = descriptors[a0];
- 	
- 	//check to see how much is being written
- 	int amountWrite = readVirtualMemory(a1, buffer, 0 , a2);
- 	
- 	//get the total amount written
- 	int totalWrite = readFile.write(buffer, 0, amountWrite);
- 	
- 	//check to see if while written there was an error
- 	if(totalWrite == -1) {
- 		
- 		return -1;
- 		
- 	}
- 	
- 	return totalWrite;
- 	
- }
+	UserProcess child = firstExited;
+	unlinkChild(child);
+	UserKernel.processTable.remove(child.pid);
+
+	UserKernel.processLock.release();
+
+	byte[] buffer = new byte[4];
+	Lib.bytesFromInt(buffer, 0, child.pid);
+	writeVirtualMemory(pidAddr, buffer);
+	Lib.bytesFromInt(buffer, 0, child.exitStatus);
+	writeVirtualMemory(statusAddr, buffer);
+
+	return child.exitedNormally ? 1 : 0;
+    }
+
+    /**
+     * Handle the fork() system call. The child gets this process's address
+     * space, descriptors and registers, and returns 0 from fork(). No memory
+     * is copied: the child shares every frame, and writable pages become
+     * copy-on-write in both processes, so a page is only copied when one of
+     * them first writes to it.
+     *
+     * <p>
+     * Outstanding <tt>aread()</tt> requests are waited for first, since an
+     * I/O thread writes straight into the frames that are about to be
+     * shared. Their results are still collected with <tt>await()</tt>.
+     */
+    private int handleFork() {
+	UserProcess child = newUserProcess();
+
+	for (AsyncIORequest request : asyncRequests.values())
+	    request.await();
+
+	memoryLock.acquire();
+
+	int[] ppns = new int[numPages];
+	int count = 0;
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (!entry.valid)
+		continue;
+
+	    if (!entry.readOnly) {
+		entry.readOnly = true;
+		copyOnWrite[vpn] = true;
+	    }
+	    child.pageTable[vpn].ppn = entry.ppn;
+	    child.pageTable[vpn].valid = true;
+	    child.pageTable[vpn].readOnly = entry.readOnly;
+	    child.copyOnWrite[vpn] = copyOnWrite[vpn];
+	    ppns[count++] = entry.ppn;
+	}
+	UserKernel.referencePages(Arrays.copyOf(ppns, count));
+	child.numPages = numPages;
+
+	memoryLock.release();
+
+	// the child resumes after the syscall, with 0 as its result
+	Processor processor = Machine.processor();
+	child.forkRegisters = new int[processor.numUserRegisters];
+	for (int i=0; i<processor.numUserRegisters; i++)
+	    child.forkRegisters[i] = processor.readRegister(i);
+	child.forkRegisters[Processor.regV0] = 0;
+	child.forkRegisters[Processor.regPC] =
+	    child.forkRegisters[Processor.regNextPC];
+	child.forkRegisters[Processor.regNextPC] += 4;
+
+	for (int fd=0; fd<child.descriptors.size(); fd++)
+	    child.handleClose(fd);
+	for (int fd=0; fd<descriptors.size(); fd++) {
+	    OpenFile file = descriptors.get(fd);
+	    if (file != null) {
+		UserKernel.referenceFile(file);
+		child.descriptors.put(fd, file);
+	    }
+	}
+
+	UserKernel.processLock.acquire();
+	linkChild(child);
+	UserKernel.numRunningProcesses++;
+	UserKernel.processLock.release();
+
+	child.thread = new UThread(child);
+	child.thread.setName(thread.getName()).fork();
+
+	return child.pid;
+    }
+
+    /**
+     * Handle the close() system call. The file itself is closed once no
+     * descriptor refers to it any more.
+     */
+    private int handleClose(int fd) {
+	OpenFile file = descriptors.remove(fd);
+	if (file == null)
+	    return -1;
+
+	UserKernel.releaseFile(file);
+	return 0;
+    }
+
+    /**
+     * Handle the creat() system call.
+     */
+    private int handleCreate(int a0) {
+	return openDescriptor(a0, true);
+    }
+
+    /**
+     * Handle the open() system call.
+     */
+    private int handleOpen(int a0) {
+	return openDescriptor(a0, false);
+    }
+
+    /**
+     * Open a file named in user memory, and give it the lowest unused
+     * descriptor.
+     *
+     * @param	vaddr	the address of the file's name.
+     * @param	create	<tt>true</tt> to create the file.
+     * @return	the new descriptor, or -1 on error.
+     */
+    private int openDescriptor(int vaddr, boolean create) {
+	String name = readVirtualMemoryString(vaddr, 256);
+	if (name == null)
+	    return -1;
+
+	OpenFile file = UserKernel.openFile(name, create);
+	if (file == null)
+	    return -1;
+
+	int fd = descriptors.add(file);
+	if (fd == -1)
+	    UserKernel.releaseFile(file);
+	return fd;
+    }
+
+    /**
+     * Handle the dup() system call. The new descriptor shares the file, and
+     * its file pointer, with the old one.
+     */
+    private int handleDup(int fd) {
+	OpenFile file = descriptors.get(fd);
+	if (file == null)
+	    return -1;
+
+	int newFd = descriptors.add(file);
+	if (newFd != -1)
+	    UserKernel.referenceFile(file);
+	return newFd;
+    }
+
+    /**
+     * Handle the dup2() system call. Whatever <i>newFd</i> referred to before
+     * is closed.
+     */
+    private int handleDup2(int fd, int newFd) {
+	OpenFile file = descriptors.get(fd);
+	if (file == null || newFd < 0 || newFd >= maxDescriptors)
+	    return -1;
+	if (newFd == fd)
+	    return newFd;
+
+	UserKernel.referenceFile(file);
+	OpenFile previous = descriptors.put(newFd, file);
+	if (previous != null)
+	    UserKernel.releaseFile(previous);
+	return newFd;
+    }
+
+    /**
+     * Handle the read() system call. The file is read straight into the
+     * frames backing the user's buffer.
+     */
+    private int handleRead(int fd, int vaddr, int count) {
+	OpenFile file = descriptors.get(fd);
+	if (file == null)
+	    return -1;
+	if (!isValidBuffer(vaddr, count, true))
+	    return -1;
+
+	return readFromFile(file, vaddr, count);
+    }
+
+    /**
+     * Handle the write() system call. The user's buffer is written straight
+     * from the frames backing it.
+     */
+    private int handleWrite(int fd, int vaddr, int count) {
+	OpenFile file = descriptors.get(fd);
+	if (file == null)
+	    return -1;
+	if (!isValidBuffer(vaddr, count, false))
+	    return -1;
+
+	return writeToFile(file, vaddr, count);
+    }
 
 private int handleUnlink(int a0) {
  	
@@ -814,9 +1259,9 @@ private int handleUnlink(int a0) {
  	with the index it was found on.
  	*/
  	
- 	for(int i = 0; i < 16; i++) {
+ 	for(int i = 0; i < descriptors.size(); i++) {
  		
- 		FileUnlink = descriptors[i];
+ 		FileUnlink = descriptors.get(i);
  		
  		if(FileUnlink != null && FileUnlink.getName().compareTo(FileToUnlink) == 0) {
  			
@@ -840,12 +1285,258 @@ private int handleUnlink(int a0) {
  		return -1;
  		
  	}
+ 	UserKernel.fileRemoved(FileToUnlink);
 
  	
  	return 0;
  	
  }
 
+    /**
+     * Handle the readv() and writev() system calls. The iovec array is
+     * staged in one pooled buffer, and every segment is checked before any
+     * data moves, so a bad segment fails the whole call without consuming
+     * file data. The segments are then transferred in order, straight
+     * between the file and the frames backing them, stopping after the
+     * first short transfer.
+     *
+     * @param	fd	the file descriptor.
+     * @param	iovAddr	the virtual address of the iovec array.
+     * @param	iovcnt	the number of iovecs in the array.
+     * @param	read	<tt>true</tt> for readv(), <tt>false</tt> for writev().
+     * @return	the total number of bytes transferred, or -1 on error.
+     */
+    private int handleVectoredIO(int fd, int iovAddr, int iovcnt,
+				 boolean read) {
+	OpenFile file = descriptors.get(fd);
+	if (file == null)
+	    return -1;
+	if (iovcnt < 0 || iovcnt > maxIovecs)
+	    return -1;
+
+	byte[] iov = UserKernel.borrowBuffer();
+	int result = -1;
+
+	if (readVirtualMemory(iovAddr, iov, 0, iovcnt*8) == iovcnt*8
+	    && areValidIovecs(iov, iovcnt, read)) {
+	    result = 0;
+	    for (int i=0; i<iovcnt; i++) {
+		int base = Lib.bytesToInt(iov, i*8);
+		int length = Lib.bytesToInt(iov, i*8 + 4);
+		int amount = read ? readFromFile(file, base, length)
+		    : writeToFile(file, base, length);
+
+		if (amount < 0) {
+		    if (result == 0)
+			result = -1;
+		    break;
+		}
+		result += amount;
+		if (amount < length)
+		    break;
+	    }
+	}
+
+	UserKernel.returnBuffer(iov);
+	return result;
+    }
+
+    /**
+     * Check that every segment of a staged iovec array is accessible.
+     */
+    private boolean areValidIovecs(byte[] iov, int iovcnt, boolean read) {
+	for (int i=0; i<iovcnt; i++) {
+	    if (!isValidBuffer(Lib.bytesToInt(iov, i*8),
+			       Lib.bytesToInt(iov, i*8 + 4), read))
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Handle the aread() and awrite() system calls. The request is checked
+     * like a read() or write(), then queued for a kernel I/O thread.
+     *
+     * @return	a ticket for the request, or -1 on error.
+     */
+    private int handleAsyncIO(int fd, int vaddr, int count, boolean read) {
+	OpenFile file = descriptors.get(fd);
+	if (file == null)
+	    return -1;
+	if (!isValidBuffer(vaddr, count, read))
+	    return -1;
+	if (asyncRequests.size() >= maxAsyncRequests)
+	    return -1;
+
+	AsyncIORequest request =
+	    new AsyncIORequest(this, file, vaddr, count, read);
+	int ticket = nextTicket++;
+	asyncRequests.put(ticket, request);
+	UserKernel.submitIO(request);
+
+	return ticket;
+    }
+
+    /**
+     * Handle the await() and apoll() system calls. Once a request's result
+     * has been returned, its ticket is no longer valid.
+     *
+     * @param	ticket	the ticket returned by aread() or awrite().
+     * @param	block	<tt>true</tt> to wait for the request to complete.
+     * @return	the result of the request, -1 if the ticket is invalid, or
+     *		<tt>asyncPending</tt> if <i>block</i> is not set and the
+     *		request has not completed.
+     */
+    private int handleAwait(int ticket, boolean block) {
+	AsyncIORequest request = asyncRequests.get(ticket);
+	if (request == null)
+	    return -1;
+
+	if (!block && !request.isDone())
+	    return asyncPending;
+
+	asyncRequests.remove(ticket);
+	return block ? request.await() : request.getResult();
+    }
+
+    /**
+     * Handle the ring_enter() system call. The user program keeps a
+     * submission ring and a completion ring in its own memory, described by
+     * a <tt>struct ring</tt> at <i>ringAddr</i>. Every submitted operation is
+     * carried out and its result posted to the completion ring, for as long
+     * as the completion ring has room, so a whole batch of operations costs
+     * one trap into the kernel.
+     *
+     * @param	ringAddr	the virtual address of the ring header.
+     * @return	the number of submissions consumed, or -1 if the ring is
+     *		invalid.
+     */
+    private int handleRingEnter(int ringAddr) {
+	byte[] buf = UserKernel.borrowBuffer();
+	int consumed = -1;
+
+	if (readVirtualMemory(ringAddr, buf, 0, ringHeaderSize) == ringHeaderSize
+	    && isValidBuffer(ringAddr, ringHeaderSize, true)) {
+	    int sqHead = Lib.bytesToInt(buf, ringSQHead);
+	    int sqTail = Lib.bytesToInt(buf, ringSQTail);
+	    int cqHead = Lib.bytesToInt(buf, ringCQHead);
+	    int cqTail = Lib.bytesToInt(buf, ringCQTail);
+	    int sqEntries = Lib.bytesToInt(buf, ringSQEntries);
+	    int cqEntries = Lib.bytesToInt(buf, ringCQEntries);
+	    int sqes = Lib.bytesToInt(buf, ringSQEs);
+	    int cqes = Lib.bytesToInt(buf, ringCQEs);
+
+	    if (isValidRing(sqEntries, sqes, sqeSize, false)
+		&& isValidRing(cqEntries, cqes, cqeSize, true)
+		&& sqTail-sqHead >= 0 && sqTail-sqHead <= sqEntries
+		&& cqTail-cqHead >= 0 && cqTail-cqHead <= cqEntries) {
+		consumed = 0;
+
+		while (sqHead != sqTail && cqTail-cqHead < cqEntries) {
+		    int sqe = sqes + (sqHead & (sqEntries-1))*sqeSize;
+		    readVirtualMemory(sqe, buf, 0, sqeSize);
+
+		    int result = ringOperation(Lib.bytesToInt(buf, 0),
+					       Lib.bytesToInt(buf, 4),
+					       Lib.bytesToInt(buf, 8),
+					       Lib.bytesToInt(buf, 12));
+
+		    // the completion carries the submission's user data
+		    Lib.bytesFromInt(buf, 0, Lib.bytesToInt(buf, 16));
+		    Lib.bytesFromInt(buf, 4, result);
+		    int cqe = cqes + (cqTail & (cqEntries-1))*cqeSize;
+		    writeVirtualMemory(cqe, buf, 0, cqeSize);
+
+		    sqHead++;
+		    cqTail++;
+		    consumed++;
+		}
+
+		writeVirtualMemory(ringAddr+ringSQHead, Lib.bytesFromInt(sqHead));
+		writeVirtualMemory(ringAddr+ringCQTail, Lib.bytesFromInt(cqTail));
+	    }
+	}
+
+	UserKernel.returnBuffer(buf);
+	return consumed;
+    }
+
+    /**
+     * Check that a ring has a power-of-two number of entries and that its
+     * entry array is accessible.
+     */
+    private boolean isValidRing(int entries, int vaddr, int entrySize,
+				boolean write) {
+	return entries > 0 && entries <= maxRingEntries
+	    && (entries & (entries-1)) == 0
+	    && isValidBuffer(vaddr, entries*entrySize, write);
+    }
+
+    /**
+     * Carry out one operation from a submission ring.
+     *
+     * @return	the result the equivalent system call would return.
+     */
+    private int ringOperation(int opcode, int fd, int addr, int length) {
+	switch (opcode) {
+	case ringOpOpen:
+	    return handleOpen(addr);
+	case ringOpRead:
+	    return handleRead(fd, addr, length);
+	case ringOpWrite:
+	    return handleWrite(fd, addr, length);
+	case ringOpClose:
+	    return handleClose(fd);
+	default:
+	    return -1;
+	}
+    }
+
+    /**
+     * Translate the virtual address of a word in this process to a physical
+     * address, for syscalls that operate on user memory in place.
+     *
+     * @param	vaddr	the virtual address of the word.
+     * @return	the physical address of the word, or -1 if <i>vaddr</i> is
+     *		not word-aligned or not mapped.
+     */
+    private int translateWord(int vaddr) {
+	if (vaddr < 0 || vaddr%4 != 0)
+	    return -1;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages || !pageTable[vpn].valid)
+	    return -1;
+	// a futex word must not be a frame shared with another process
+	if (copyOnWrite[vpn] && !breakCopyOnWrite(vpn))
+	    return -1;
+
+	pageTable[vpn].used = true;
+	return pageTable[vpn].ppn*pageSize + Processor.offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Handle the futex_wait() system call.
+     */
+    private int handleFutexWait(int vaddr, int expected) {
+	int paddr = translateWord(vaddr);
+	if (paddr == -1)
+	    return -1;
+
+	return UserKernel.futexWait(paddr, expected);
+    }
+
+    /**
+     * Handle the futex_wake() system call.
+     */
+    private int handleFutexWake(int vaddr, int count) {
+	int paddr = translateWord(vaddr);
+	if (paddr == -1 || count < 0)
+	    return -1;
+
+	return UserKernel.futexWake(paddr, count);
+    }
+
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
      * <i>syscall</i> argument identifies which syscall the user executed:
@@ -865,6 +1556,26 @@ private int handleUnlink(int a0) {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futex_wait(int *addr, int expected);
+     *								</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  futex_wake(int *addr, int count);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *					  int iovcnt);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *					   int iovcnt);</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  ring_enter(struct ring *ring);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  aread(int fd, char *buffer, int size);
+     *								</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  awrite(int fd, char *buffer, int size);
+     *								</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  await(int ticket);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  apoll(int ticket);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  dup(int fd);</tt></td></tr>
+     * <tr><td>23</td><td><tt>int  dup2(int fd, int newfd);</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  waitany(int *pid, int *status, int flags);
+     *								</tt></td></tr>
+     * <tr><td>25</td><td><tt>int  fork();</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -896,6 +1607,32 @@ private int handleUnlink(int a0) {
 		return handleClose(a0);
 	case syscallUnlink:
 		return handleUnlink(a0);
+	case syscallFutexWait:
+	    return handleFutexWait(a0, a1);
+	case syscallFutexWake:
+	    return handleFutexWake(a0, a1);
+	case syscallReadv:
+	    return handleVectoredIO(a0, a1, a2, true);
+	case syscallWritev:
+	    return handleVectoredIO(a0, a1, a2, false);
+	case syscallRingEnter:
+	    return handleRingEnter(a0);
+	case syscallARead:
+	    return handleAsyncIO(a0, a1, a2, true);
+	case syscallAWrite:
+	    return handleAsyncIO(a0, a1, a2, false);
+	case syscallAwait:
+	    return handleAwait(a0, true);
+	case syscallAPoll:
+	    return handleAwait(a0, false);
+	case syscallDup:
+	    return handleDup(a0);
+	case syscallDup2:
+	    return handleDup2(a0, a1);
+	case syscallWaitAny:
+	    return handleWaitAny(a0, a1, a2);
+	case syscallFork:
+	    return handleFork();
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -926,45 +1663,185 @@ private int handleUnlink(int a0) {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
-				       
+
+	case Processor.exceptionReadOnly:
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    // the faulting instruction is restarted on the private copy; if
+	    // the page is not copy-on-write, it really is read-only
+	    if (!(vpn < numPages && copyOnWrite[vpn] && breakCopyOnWrite(vpn)))
+		handleUnexpectedException(cause);
+	    break;
+
 	default:
-	    Lib.debug(dbgProcess, "Unexpected exception: " +
-		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    handleUnexpectedException(cause);
+	}
+    }
+
+    /**
+     * Kill this process because of an exception it cannot recover from.
+     *
+     * @param	cause	the user exception that occurred.
+     */
+    private void handleUnexpectedException(int cause) {
+	Lib.debug(dbgProcess, "Unexpected exception: " +
+		  Processor.exceptionNames[cause]);
+	terminate(-1, false);
+    }
+
+    /**
+     * Test that loading a program and unloading it again gives back every
+     * frame, for a program whose uninitialized data is read-only and so
+     * mapped from the image cache.
+     */
+    public static void selfTest() {
+	int free = UserKernel.numFreePages();
+
+	// the second load maps the read-only section cached by the first
+	for (int run=0; run<2; run++) {
+	    UserProcess process = newUserProcess();
+	    process.coff = new ZeroedCoff();
+	    process.executableName = "selfTest.coff";
+	    process.numPages = 3 + process.stackPages + 1;
+
+	    Lib.assertTrue(process.loadSections());
+	    process.unloadSections();
+
+	    for (int i=0; i<process.descriptors.size(); i++)
+		process.handleClose(i);
+	    // so the first real program still gets the first process ID
+	    UserKernel.unregisterProcess(process.pid);
+	}
+
+	UserKernel.imageCache.trim();
+	Lib.assertTrue(UserKernel.numFreePages() == free);
+    }
+
+    /**
+     * A program made only of uninitialized sections, two pages of read-only
+     * data and a page of writable data, with no file behind it.
+     */
+    private static class ZeroedCoff extends Coff {
+	ZeroedCoff() {
+	    sections = new CoffSection[] {
+		new ZeroedSection(this, ".rbss", true, 2, 0),
+		new ZeroedSection(this, ".bss", false, 1, 2)
+	    };
+	}
+
+	public void close() {
+	}
+    }
+
+    private static class ZeroedSection extends CoffSection {
+	ZeroedSection(Coff coff, String name, boolean readOnly, int numPages,
+		      int firstVPN) {
+	    super(coff, name, false, readOnly, numPages, firstVPN);
+	    initialized = false;
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Arrays.fill(Machine.processor().getMemory(), ppn*pageSize,
+			(ppn+1)*pageSize, (byte) 0);
 	}
     }
 
-    /** The program being run by this process. */
+    /**
+     * The program being run by this process, or <tt>null</tt> once it has
+     * been unloaded. A forked process has none of its own.
+     */
     protected Coff coff;
+    /** The name and identity of the program, for the image cache. */
+    private String executableName;
+    private int executableVersion, executableLength;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /**
+     * For each virtual page, whether it is read-only only because its frame
+     * is shared with a forked process. Guarded by <tt>memoryLock</tt>.
+     */
+    protected boolean[] copyOnWrite;
+    /** Serializes copy-on-write changes to the page table. */
+    private Lock memoryLock = new Lock();
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
-        public OpenFile[] descriptors;
+    /** The most descriptors a process can have open at once. */
+    protected static final int maxDescriptors =
+	Config.getInteger("UserProcess.maxDescriptors", 1024);
+    /** This process's open files, by descriptor. */
+    protected DescriptorTable descriptors;
 	protected OpenFile stdin;
 	protected OpenFile stdout;
     private int initialPC, initialSP;
+    /** The registers a forked child starts with, or <tt>null</tt>. */
+    private int[] forkRegisters = null;
     private int argc, argv;
-	private boolean Normalexit = false;
 	public int count;
-	private int ProcessID;
-private UserProcess parentProcess;
-	private ArrayList<UserProcess> ChildPro = new ArrayList<UserProcess>();
-	protected HashMap<Integer,Integer> childrenExitStatus;
-	protected Lock JoinLock;
-	protected Lock ExitLock;
-	private Integer status = null;
-	public int ExitStat;
-	
-	protected Lock counterPIDLock = new Lock();
-	protected static int counterPID = 0;
+
+    /** This process's ID, its key in <tt>UserKernel.processTable</tt>. */
+    private int pid;
+    /**
+     * This process's parent, or <tt>null</tt>. A process's children are
+     * linked through their sibling fields, so a child can be unlinked in
+     * constant time. All of these, and the exit state below, are guarded by
+     * <tt>UserKernel.processLock</tt>.
+     */
+    private UserProcess parent;
+    private UserProcess nextSibling, prevSibling;
+    /** This process's running children. */
+    private UserProcess firstChild;
+    /** This process's exited, unreaped children, in the order they exited. */
+    private UserProcess firstExited, lastExited;
+    private boolean exited = false;
+    private boolean exitedNormally = false;
+    private int exitStatus;
+    /** Signalled when a child of this process exits. */
+    private Condition2 childExited;
 
 
     private static final int pageSize = Processor.pageSize;
+    /** The most iovecs readv() and writev() accept: one page's worth. */
+    private static final int maxIovecs = pageSize/8;
+
+    /** Byte offsets of the fields of a <tt>struct ring</tt>. */
+    private static final int
+	ringSQHead = 0,
+	ringSQTail = 4,
+	ringCQHead = 8,
+	ringCQTail = 12,
+	ringSQEntries = 16,
+	ringCQEntries = 20,
+	ringSQEs = 24,
+	ringCQEs = 28,
+	ringHeaderSize = 32;
+    /** Sizes of a submission and a completion entry. */
+    private static final int sqeSize = 20, cqeSize = 8;
+    private static final int maxRingEntries = 4096;
+
+    /** Asynchronous requests whose result has not been collected. */
+    private HashMap<Integer,AsyncIORequest> asyncRequests =
+	new HashMap<Integer,AsyncIORequest>();
+    private int nextTicket = 0;
+    private static final int maxAsyncRequests = 16;
+    /** The waitany() flag to return instead of waiting. */
+    private static final int waitNoHang = 1;
+    /**
+     * What waitany() returns, given <tt>waitNoHang</tt>, if no child has
+     * exited yet.
+     */
+    private static final int waitRunning = -2;
+    /** What apoll() returns for a request that is still running. */
+    private static final int asyncPending = -2;
+    /** Operations that can be submitted to a ring. */
+    private static final int
+	ringOpOpen = 0,
+	ringOpRead = 1,
+	ringOpWrite = 2,
+	ringOpClose = 3;
     private static final char dbgProcess = 'a';
     KThread thread;
 }